@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static edu.mit.lib.bagit.Bag.*;
+
+/**
+ * Benchmarks of bag reading: completeness and validity checks, and parsing of
+ * metadata, property files and manifests. A bag of fileCount small payload files
+ * is built once per trial, as a directory or a zip package, and loaded afresh
+ * in each invocation, since a Bag caches what it has parsed.
+ *
+ * @author richardrodgers
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BagBenchmark {
+
+    private static final String PROPS = "meta/props.txt";
+
+    @Param({"10", "1000"})
+    public int fileCount;
+
+    @Param({"directory", "zip"})
+    public String form;
+
+    private Path workDir;
+    private Path bagPath;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        workDir = Files.createTempDirectory("bagbench");
+        byte[] data = BenchData.text(4096);
+        Filler filler = new Filler(workDir.resolve("bag"));
+        for (int i = 0; i < fileCount; i++) {
+            filler.payload("dir" + (i % 10) + "/file" + i, new ByteArrayInputStream(data));
+        }
+        filler.metadata(MetadataName.SOURCE_ORG, "MIT Libraries")
+              .metadata(MetadataName.EXTERNAL_DESC, "Benchmark bag");
+        for (int i = 0; i < 20; i++) {
+            filler.property(PROPS, "prop" + i, "value of property " + i);
+        }
+        bagPath = "zip".equals(form) ? filler.toPackage("zip") : filler.toDirectory();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchData.delete(workDir);
+    }
+
+    @Benchmark
+    public boolean isComplete() throws IOException {
+        try (Bag bag = new Loader(bagPath).load()) {
+            return bag.isComplete();
+        }
+    }
+
+    @Benchmark
+    public boolean isValid() throws IOException {
+        try (Bag bag = new Loader(bagPath).load()) {
+            return bag.isValid();
+        }
+    }
+
+    @Benchmark
+    public boolean isValidSingleThread() throws IOException {
+        try (Bag bag = new Loader(bagPath).load()) {
+            return bag.validate(1).isValid();
+        }
+    }
+
+    @Benchmark
+    public List<String> metadata() throws IOException {
+        try (Bag bag = new Loader(bagPath).load()) {
+            return bag.metadata(MetadataName.SOURCE_ORG);
+        }
+    }
+
+    @Benchmark
+    public List<String> property() throws IOException {
+        try (Bag bag = new Loader(bagPath).load()) {
+            return bag.property(PROPS, "prop19");
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> payloadManifest() throws IOException {
+        try (Bag bag = new Loader(bagPath).load()) {
+            return bag.payloadManifest();
+        }
+    }
+}
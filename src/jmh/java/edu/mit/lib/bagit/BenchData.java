@@ -0,0 +1,87 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * BenchData supplies synthetic content for benchmarks, and cleans up after them.
+ * Content is generated from a fixed seed, so that runs are reproducible.
+ *
+ * @author richardrodgers
+ */
+
+class BenchData {
+
+    private static final String[] WORDS = {
+        "repository", "item", "collection", "community", "bitstream", "metadata",
+        "the", "of", "and", "a", "to", "in", "digital", "library", "archive", "preservation"
+    };
+
+    /**
+     * Returns text-like content, which deflates about as well as prose.
+     *
+     * @param size the content size in bytes
+     * @return content the content
+     */
+    static byte[] text(int size) {
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            String word = WORDS[random.nextInt(WORDS.length)];
+            for (int i = 0; i < word.length() && pos < size; i++) {
+                data[pos++] = (byte)word.charAt(i);
+            }
+            if (pos < size) {
+                data[pos++] = (byte)((random.nextInt(12) == 0) ? '\n' : ' ');
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns random content, which does not deflate - like images or archives.
+     *
+     * @param size the content size in bytes
+     * @return content the content
+     */
+    static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Deletes passed file or directory tree, if it exists.
+     *
+     * @param path the file or directory
+     */
+    static void delete(Path path) throws IOException {
+        if (path == null || Files.notExists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
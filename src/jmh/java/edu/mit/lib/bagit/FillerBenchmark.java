@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of bag building: adding payload by stream, by file and through
+ * a payload stream, and packaging - as zip or tgz from a bag directory,
+ * or streamed directly into a zip. Each invocation builds a complete bag
+ * of fileCount payload files of fileSize bytes each.
+ *
+ * @author richardrodgers
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FillerBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int fileSize;
+
+    @Param({"1", "100"})
+    public int fileCount;
+
+    // 'text' deflates well, 'random' not at all (and is stored in packages)
+    @Param({"text", "random"})
+    public String content;
+
+    private byte[] data;
+    private Path workDir;
+    private Path srcFile;
+    // output of the current invocation, removed after it
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = "text".equals(content) ? BenchData.text(fileSize) : BenchData.random(fileSize);
+        workDir = Files.createTempDirectory("fillerbench");
+        srcFile = workDir.resolve("source.bin");
+        Files.write(srcFile, data);
+    }
+
+    @TearDown(Level.Invocation)
+    public void clean() throws IOException {
+        BenchData.delete(output);
+        output = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchData.delete(workDir);
+    }
+
+    @Benchmark
+    public Path payloadFromStream() throws IOException {
+        Filler filler = new Filler(bagDir());
+        for (int i = 0; i < fileCount; i++) {
+            filler.payload("file" + i, new ByteArrayInputStream(data));
+        }
+        return output = filler.toDirectory();
+    }
+
+    @Benchmark
+    public Path payloadFromFile() throws IOException {
+        Filler filler = new Filler(bagDir());
+        for (int i = 0; i < fileCount; i++) {
+            filler.payload("file" + i, srcFile);
+        }
+        return output = filler.toDirectory();
+    }
+
+    @Benchmark
+    public Path payloadStream() throws IOException {
+        Filler filler = new Filler(bagDir());
+        for (int i = 0; i < fileCount; i++) {
+            try (OutputStream out = filler.payloadStream("file" + i)) {
+                out.write(data);
+            }
+        }
+        return output = filler.toDirectory();
+    }
+
+    @Benchmark
+    public Path packageZip() throws IOException {
+        return output = fill(new Filler(bagDir())).toPackage("zip");
+    }
+
+    @Benchmark
+    public Path packageTgz() throws IOException {
+        return output = fill(new Filler(bagDir())).toPackage("tgz");
+    }
+
+    @Benchmark
+    public Path streamedZip() throws IOException {
+        return output = fill(new Filler(bagDir(), null, "zip")).toPackage();
+    }
+
+    private Filler fill(Filler filler) throws IOException {
+        for (int i = 0; i < fileCount; i++) {
+            filler.payload("file" + i, new ByteArrayInputStream(data));
+        }
+        return filler;
+    }
+
+    private Path bagDir() {
+        return workDir.resolve("bag" + System.nanoTime());
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import edu.mit.lib.bagit.BagUtils.Value;
+import edu.mit.lib.bagit.BagUtils.XmlWriter;
+
+/**
+ * Benchmarks of metadata serialization: a document of valueCount
+ * values, shaped like DSpace item metadata, is written to a sink.
+ *
+ * @author richardrodgers
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlWriterBenchmark {
+
+    private static final String[] ELEMENTS = { "title", "contributor", "date", "description", "subject", "identifier" };
+
+    @Param({"10", "100", "1000"})
+    public int valueCount;
+
+    private Value[] values;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        byte[] text = BenchData.text(valueCount * 64);
+        values = new Value[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            Value value = new Value();
+            value.addAttr("schema", "dc");
+            value.addAttr("element", ELEMENTS[i % ELEMENTS.length]);
+            if (i % 3 == 0) {
+                value.addAttr("qualifier", "other");
+            }
+            value.addAttr("language", "en_US");
+            value.val = new String(text, i * 64, 64 - (i % 32));
+            values[i] = value;
+        }
+    }
+
+    @Benchmark
+    public void writeValues(Blackhole bh) throws IOException {
+        XmlWriter writer = BagUtils.xmlWriter(new Sink(bh));
+        writer.startStanza("metadata");
+        for (Value value : values) {
+            writer.writeValue(value);
+        }
+        writer.endStanza();
+        writer.close();
+    }
+
+    @Benchmark
+    public void writeNamedValues(Blackhole bh) throws IOException {
+        XmlWriter writer = BagUtils.xmlWriter(new Sink(bh));
+        writer.startStanza("properties");
+        for (int i = 0; i < values.length; i++) {
+            writer.writeValue("prop" + i, values[i].val);
+        }
+        writer.endStanza();
+        writer.close();
+    }
+
+    // consumes output, so that only serialization is measured
+    private static class Sink extends OutputStream {
+
+        private final Blackhole bh;
+
+        Sink(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public void write(int b) {
+            bh.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bh.consume(b);
+            bh.consume(len);
+        }
+    }
+}
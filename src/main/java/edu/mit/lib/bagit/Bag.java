@@ -6,20 +6,29 @@
 package edu.mit.lib.bagit;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
-import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Bag represents a rudimentary bag conformant to LC Bagit spec - version 0.97.
@@ -32,13 +41,15 @@ import java.util.Map;
  * can create bags and serialize them to a compressed archive file (supported
  * formats zip or tgz) or be deserialized from same or a stream, 
  * abiding by the serialization recommendations of the specification.
+ * Bags loaded from a zip archive read their files from the archive in place,
+ * and should be closed when no longer needed.
  *
  * See README for sample invocations and API description.
  *
  * @author richardrodgers
  */
 
-public class Bag {
+public class Bag implements Closeable {
     // coding constants
     static final String ENCODING = "UTF-8";
     static final String CS_ALGO = "MD5";
@@ -55,6 +66,8 @@ public class Bag {
     static final String REF_FILE = "fetch.txt";
     static final String DATA_DIR = "data";
     static final String DATA_PATH = DATA_DIR + "/";
+    // read buffer size for checksum computation
+    static final int BUF_SIZE = 1024 * 1024;
 
     /**
      * Reserved metadata property names
@@ -92,17 +105,50 @@ public class Bag {
     // allow serialization, etc of bag
     private final boolean sealed;
 
+    // archive holding bag, if read in place
+    private final Closeable archive;
+
     // metadata cache
     private final Map<String, Map<String, List<String>>> mdCache = new HashMap<>();
 
+    // per-thread read buffers for checksum computation
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BUF_SIZE);
+        }
+    };
+
     /**
      * Constructor - creates a new bag from a Loader
      *
      * @throws IOException
      */
     Bag(Path baseDir, boolean sealed) throws IOException {
+        this(baseDir, sealed, null);
+    }
+
+    /**
+     * Constructor - creates a new bag from a Loader, backed by an archive
+     * which is closed with the bag
+     *
+     * @throws IOException
+     */
+    Bag(Path baseDir, boolean sealed, Closeable archive) throws IOException {
         this.baseDir = baseDir;
         this.sealed = sealed;
+        this.archive = archive;
+    }
+
+    /**
+     * Releases the archive backing the bag, if any. Bag files may
+     * not be read once the bag is closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (archive != null) {
+            archive.close();
+        }
     }
 
     /**
@@ -129,61 +175,48 @@ public class Bag {
      * @return name the name of the bag
      */
     public String bagName() {
-        return baseDir.getFileName().toString();
+        // archive paths may carry a trailing separator
+        return baseDir.getFileName().toString().replace("/", "");
     }
 
     /**
-     * Returns the checksum algortihm used in bag manifests.
+     * Returns the checksum algorithm used in bag manifests - the strongest,
+     * if the bag has manifests for several. Algorithms are named as in Java
+     * (e.g. 'SHA-256'), rather than as in manifest file names ('sha256').
      *
-     * @return algorithm the checksum algorithm
+     * @return algorithm the checksum algorithm, or null if no manifests
      */
     public String csAlgorithm() throws IOException {
         return csAlgorithm(baseDir);
     }
 
+    /**
+     * Returns the checksum algorithms of all payload manifests in the bag,
+     * named as in Java (e.g. 'SHA-256'), strongest first.
+     *
+     * @return algorithms the checksum algorithms
+     */
+    public List<String> csAlgorithms() throws IOException {
+        return csAlgorithms(baseDir);
+    }
+
     /**
      * Returns whether the bag is complete.
      *
      * @return complete true if bag is complete
      */
     public boolean isComplete() throws IOException {
-        // no fetch.txt?
-        if (Files.exists(bagFile(REF_FILE))) return false;
-        // mandatory files present?
-        if (! (Files.exists(bagFile(DECL_FILE)) &&
-               Files.isDirectory(bagFile(DATA_DIR)))) return false;
-        // payload files map?
-        Map<String, String> payloads = payloadManifest();
-        // # payload files and # manifest entries must agree
-        if (fileCount(bagFile(DATA_DIR)) != payloads.size()) return false;
-        // files themselves must match also
-        for (String path : payloads.keySet()) {
-            if (path.startsWith(DATA_DIR) && Files.notExists(bagFile(path))) return false;
-        }
-        // same drill for tag files
-        Map<String, String> tags = tagManifest();
-        // # tag files and # manifest entries must agree
-        // tag files consist of any top-level files except:
-        // tagmanifest itself, and the payload directory.
-        DirectoryStream.Filter<Path> filter = new DirectoryStream.Filter<Path>() {
-            public boolean accept(Path file) throws IOException {
-                String name = file.getFileName().toString();
-                return ! (name.startsWith(TAGMANIF_FILE) || name.startsWith(DATA_DIR));
-            }
-        };
-        int tagCount = 0;
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(baseDir, filter)) {
-            for (Path tag : stream) {
-                if (Files.isDirectory(tag)) tagCount += fileCount(tag);
-                else tagCount++;
-            }
-        } 
-        if (tagCount != tags.size()) return false;
-        // files themselves must match also
-        for (String path : tags.keySet()) {
-            if (Files.notExists(bagFile(path))) return false;
-        }
-        return true;
+        return inventory().isComplete();
+    }
+
+    /**
+     * Returns an inventory of the bag's contents joined against its manifests.
+     * The inventory is a snapshot computed from a single walk of the bag.
+     *
+     * @return inventory the bag inventory
+     */
+    public Inventory inventory() throws IOException {
+        return new Inventory(baseDir);
     }
 
     /**
@@ -201,19 +234,71 @@ public class Bag {
      * @return valid true if bag validates
      */
     public boolean isValid() throws IOException {
-        if (! isComplete()) return false;
-        // recompute all checksums and compare against manifest values
-        Map<String, String> payloads = payloadManifest();
-        for (String relPath : payloads.keySet()) {
-            String cutPath = relPath.substring(DATA_PATH.length());
-            if (! validateFile(payloadStream(cutPath), payloads.get(relPath), csAlgorithm())) return false;
+        return validate(Runtime.getRuntime().availableProcessors()).isValid();
+    }
+
+    /**
+     * Validates the bag, reporting all missing, extra and corrupt files.
+     * Checksums for all manifests present are computed in a single read
+     * of each file, with files read concurrently.
+     *
+     * @param threads the number of files to read concurrently
+     * @return report the validation report
+     */
+    public ValidationReport validate(int threads) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            return validate(pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Validates the bag as above, reading files concurrently in the passed pool.
+     * Validating many bags through one pool spares each its own threads, and
+     * the read buffer each thread allocates. The pool is not shut down.
+     *
+     * @param pool the executor which reads files
+     * @return report the validation report
+     */
+    public ValidationReport validate(ExecutorService pool) throws IOException {
+        long start = System.currentTimeMillis();
+        ValidationReport report = new ValidationReport();
+        Inventory inventory = inventory();
+        if (! inventory.isComplete()) {
+            report.incomplete();
+        }
+        for (String relPath : inventory.extra()) {
+            report.extra(relPath);
         }
-        // same for tag files
-        Map<String, String> tags = tagManifest();
-        for (String relPath : tags.keySet()) {
-            if (! validateFile(tagStream(relPath), tags.get(relPath), csAlgorithm())) return false;
+        for (String relPath : inventory.missing()) {
+            report.missing(relPath);
         }
-        return true;
+        Map<String, Future<FileCheck>> checks = new HashMap<>();
+        try {
+            for (String relPath : inventory.listed()) {
+                if (inventory.size(relPath) >= 0) {
+                    checks.put(relPath, pool.submit(new FileCheck(bagFile(relPath), inventory.checksums(relPath))));
+                }
+            }
+            for (String relPath : checks.keySet()) {
+                FileCheck check = checks.get(relPath).get();
+                report.checked(relPath, check.bytes, check.nanos, check.matched);
+            }
+        } catch (InterruptedException intE) {
+            throw new IOException("Validation interrupted", intE);
+        } catch (ExecutionException exE) {
+            Throwable cause = exE.getCause();
+            throw (cause instanceof IOException) ? (IOException)cause : new IOException(cause.getMessage(), cause);
+        } finally {
+            // the pool may outlive this bag - leave no checks running in it
+            for (Future<FileCheck> check : checks.values()) {
+                check.cancel(true);
+            }
+        }
+        report.finish(System.currentTimeMillis() - start);
+        return report;
     }
 
     /**
@@ -345,7 +430,18 @@ public class Bag {
      * @return map a map of resource path names to checksums
      */
     public Map<String, String> payloadManifest() throws IOException {
-        String sfx = csAlgorithm().toLowerCase() + ".txt";
+        return payloadManifest(csAlgorithm());
+    }
+
+    /**
+     * Returns the contents of the payload manifest file for passed algorithm.
+     * Contents are relative paths as keys and checksums as values.
+     *
+     * @param csAlg the checksum algorithm
+     * @return map a map of resource path names to checksums
+     */
+    public Map<String, String> payloadManifest(String csAlg) throws IOException {
+        String sfx = bagItName(csAlg) + ".txt";
         return manifest(MANIF_FILE + sfx);
     }
 
@@ -356,7 +452,18 @@ public class Bag {
      * @return map a map of resource path names to checksums
      */
     public Map<String, String> tagManifest() throws IOException {
-        String sfx = csAlgorithm().toLowerCase() + ".txt";
+        return tagManifest(csAlgorithm());
+    }
+
+    /**
+     * Returns the contents of the tag manifest file for passed algorithm.
+     * Contents are relative paths as keys and checksums as values.
+     *
+     * @param csAlg the checksum algorithm
+     * @return map a map of resource path names to checksums
+     */
+    public Map<String, String> tagManifest(String csAlg) throws IOException {
+        String sfx = bagItName(csAlg) + ".txt";
         return manifest(TAGMANIF_FILE + sfx);
     }
 
@@ -369,30 +476,7 @@ public class Bag {
      * @return map a map of resource path names to checksums
      */
     public Map<String, String> manifest(String relPath) throws IOException {
-        Map<String, String> mfMap = new HashMap<>();
-        try (BufferedReader reader = Files.newBufferedReader(bagFile(relPath), StandardCharsets.UTF_8)) {
-            String line = null;
-            while((line = reader.readLine()) != null) {
-                String[] parts = line.split(" ");
-                mfMap.put(parts[1], parts[0]);
-            }
-        }
-        return mfMap;
-    }
-
-    // count of files in a directory, including subdirectory files (but not the subdir itself)
-    private int fileCount(Path dir) throws IOException {
-        int count = 0;
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
-            for (Path file : stream) {
-                if (Files.isDirectory(file)) {
-                    count += fileCount(file);
-                } else {
-                    count++;
-                }
-            }
-        } 
-        return count;
+        return readManifest(bagFile(relPath));
     }
 
     private void addProp(String name, String value, Map<String, List<String>> mdSet) {
@@ -404,36 +488,60 @@ public class Bag {
         vals.add(value.trim());
     }
 
-    private Path dataFile(String name) throws IOException {
+    private Path dataFile(String name) {
         // all user-defined files live in payload area - ie. under 'data'
-        Path dataFile = bagFile(DATA_DIR).resolve(name);
-        // create needed dirs
-        Path parentFile = dataFile.getParent();
-        if (! Files.isDirectory(parentFile)) {
-            Files.createDirectories(parentFile);
-        }
-        return dataFile;
+        return bagFile(DATA_DIR).resolve(name);
     }
 
     private Path bagFile(String name) {
         return baseDir.resolve(name);
     }
 
-    private boolean validateFile(InputStream is, String expectedChecksum, String csAlg) throws IOException {
-        byte[] buf = new byte[2048];
-        int num = 0;
-        if (is == null) {
-            throw new IOException("no input");
+    // computes all expected checksums of a file in one pass, using a large buffer
+    private static class FileCheck implements Callable<FileCheck> {
+
+        private final Path file;
+        private final Map<String, String> expected;
+        long bytes = 0L;
+        long nanos = 0L;
+        boolean matched = true;
+
+        FileCheck(Path file, Map<String, String> expected) {
+            this.file = file;
+            this.expected = expected;
         }
-        // wrap stream in digest stream
-        try (DigestInputStream dis = 
-            new DigestInputStream(is, MessageDigest.getInstance(csAlg))) {
-            while (num != -1) {
-                num = dis.read(buf);
+
+        @Override
+        public FileCheck call() throws IOException {
+            long start = System.nanoTime();
+            List<String> csAlgs = new ArrayList<>(expected.keySet());
+            MessageDigest[] digests = new MessageDigest[csAlgs.size()];
+            for (int i = 0; i < digests.length; i++) {
+                try {
+                    digests[i] = MessageDigest.getInstance(csAlgs.get(i));
+                } catch (NoSuchAlgorithmException nsaE) {
+                    throw new IOException("no algorithm: " + csAlgs.get(i));
+                }
+            }
+            ByteBuffer buf = buffers.get();
+            try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+                buf.clear();
+                int num = 0;
+                while ((num = channel.read(buf)) != -1) {
+                    for (MessageDigest digest : digests) {
+                        digest.update(buf.array(), 0, num);
+                    }
+                    bytes += num;
+                    buf.clear();
+                }
             }
-            return (expectedChecksum.equals(toHex(dis.getMessageDigest().digest())));
-        } catch (NoSuchAlgorithmException nsaE) {
-            throw new IOException("no algorithm: " + csAlg);
+            for (int i = 0; i < digests.length; i++) {
+                if (! expected.get(csAlgs.get(i)).equals(toHex(digests[i].digest()))) {
+                    matched = false;
+                }
+            }
+            nanos = System.nanoTime() - start;
+            return this;
         }
     }
 
@@ -451,17 +559,65 @@ public class Bag {
         return refMap;
     }
 
-    static String csAlgorithm(Path base) throws IOException {
-        // determine checksum in use from the manifest file name
+    static Map<String, String> readManifest(Path manFile) throws IOException {
+        Map<String, String> mfMap = new HashMap<>();
+        if (Files.notExists(manFile)) {
+            return mfMap;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manFile, StandardCharsets.UTF_8)) {
+            String line = null;
+            while((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                mfMap.put(parts[1], parts[0]);
+            }
+        }
+        return mfMap;
+    }
+
+    static List<String> csAlgorithms(Path base) throws IOException {
+        // determine checksums in use from the manifest file names
+        List<String> csAlgs = new ArrayList<>();
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(base, MANIF_FILE + "*")) {
             for (Path manFile : stream) {
-                // extract algorithm from filename
                 String fileName = manFile.getFileName().toString();
-                return fileName.substring(MANIF_FILE.length(), fileName.lastIndexOf("."));
+                csAlgs.add(jcaName(fileName.substring(MANIF_FILE.length(), fileName.lastIndexOf("."))));
+            }
+        }
+        // directory order is arbitrary - list strongest first
+        Collections.sort(csAlgs, new Comparator<String>() {
+            @Override
+            public int compare(String alg1, String alg2) {
+                int cmp = Integer.compare(strength(alg2), strength(alg1));
+                return (cmp != 0) ? cmp : alg1.compareTo(alg2);
             }
-        } 
+        });
+        return csAlgs;
+    }
+
+    static String csAlgorithm(Path base) throws IOException {
+        List<String> csAlgs = csAlgorithms(base);
         // if no any manifest files, return null
-        return null;
+        return csAlgs.isEmpty() ? null : csAlgs.get(0);
+    }
+
+    // BagIt names algorithms in lower case without hyphens - 'sha256', where Java has 'SHA-256'
+    static String bagItName(String csAlg) {
+        return csAlg.toLowerCase().replace("-", "");
+    }
+
+    // maps an algorithm name in either form to the Java form
+    static String jcaName(String csAlg) {
+        String name = bagItName(csAlg);
+        if (name.matches("sha[0-9]+")) {
+            return "SHA-" + name.substring(3);
+        }
+        return csAlg.toUpperCase();
+    }
+
+    // relative strength of (Java named) algorithm - unknown ones weakest
+    private static final List<String> STRENGTHS = Arrays.asList("MD5", "SHA-1", "SHA-224", "SHA-256", "SHA-384", "SHA-512");
+    private static int strength(String csAlg) {
+        return STRENGTHS.indexOf(csAlg);
     }
 
     private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
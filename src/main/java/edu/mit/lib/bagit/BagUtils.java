@@ -71,6 +71,8 @@ public class BagUtils {
 
     private static XMLInputFactory inFactory = XMLInputFactory.newInstance();
     private static XMLOutputFactory outFactory = XMLOutputFactory.newInstance();
+    // cached metadata schema registry
+    private static volatile String[] schemaNames;
 
 
     public static FlatReader flatReader(InputStream in) throws IOException {
@@ -223,8 +225,9 @@ public class BagUtils {
 
         private XmlWriter(OutputStream out) throws IOException {
             try {
-                this.out = out;
-                writer = outFactory.createXMLStreamWriter(out, ENCODING);
+                // the Stax writer emits many small writes per value
+                this.out = new BufferedOutputStream(out);
+                writer = outFactory.createXMLStreamWriter(this.out, ENCODING);
                 writer.writeStartDocument(ENCODING, "1.0");
             } catch (XMLStreamException xsE) {
                 throw new IOException(xsE.getMessage(), xsE);
@@ -278,6 +281,27 @@ public class BagUtils {
             }
         }
 
+        // writes a DSpace metadata value - attributes written directly, nulls omitted
+        public void writeValue(DCValue dcv) throws IOException {
+            try  {
+                writer.writeStartElement("value");
+                writeAttribute("schema", dcv.schema);
+                writeAttribute("element", dcv.element);
+                writeAttribute("qualifier", dcv.qualifier);
+                writeAttribute("language", dcv.language);
+                writer.writeCharacters((dcv.value != null) ? dcv.value : "");
+                writer.writeEndElement();
+            } catch (XMLStreamException xsE) {
+                throw new IOException(xsE.getMessage(), xsE);
+            }
+        }
+
+        private void writeAttribute(String name, String val) throws XMLStreamException {
+            if (val != null) {
+                writer.writeAttribute(name, val);
+            }
+        }
+
         public void close() throws IOException {
             try {
                 writer.writeEndDocument();
@@ -308,34 +332,47 @@ public class BagUtils {
     }
 
     public static void writeMetadata(DSpaceObject dso, /*PackingFilter filter,*/ OutputStream out) throws IOException, SQLException {
+        long start = Metrics.start();
         XmlWriter writer = xmlWriter(out);
         writer.startStanza("metadata");
         // are we metadata filtering via view or set? (only set supported here)
         String view = null; //filter.getMdViewName();
         if (view == null) {
-            Context ctx = null;
-            try {
-                ctx = new Context();
-                for (MetadataSchema schema : MetadataSchema.findAll(ctx)) {
-                    //if (filter.acceptMdSet(schema.getName())) {
-                        Value value = new Value();
-                        DCValue[] vals = ((Item)dso).getMetadata(schema.getName(), Item.ANY, Item.ANY, Item.ANY);
-                        for (DCValue val : vals) {
-                            value.addAttr("schema", val.schema);
-                            value.addAttr("element", val.element);
-                            value.addAttr("qualifier", val.qualifier);
-                            value.addAttr("language", val.language);
-                            value.val = val.value;
-                            writer.writeValue(value);
+            // all values in one fetch, written grouped by schema in registry order
+            DCValue[] vals = ((Item)dso).getMetadata(Item.ANY, Item.ANY, Item.ANY, Item.ANY);
+            for (String schema : schemaNames()) {
+                //if (filter.acceptMdSet(schema)) {
+                    for (DCValue val : vals) {
+                        if (schema.equals(val.schema)) {
+                            writer.writeValue(val);
                         }
-                    //}
+                    }
+                //}
+            }
+        }
+        writer.endStanza();
+        writer.close();
+        Metrics.stop(Metrics.METADATA, start, 0L);
+    }
+
+    // names of registered metadata schemas, in registry order - read once, since
+    // the registry is not expected to change while bags are being written
+    private static String[] schemaNames() throws SQLException {
+        String[] names = schemaNames;
+        if (names == null) {
+            Context ctx = new Context();
+            try {
+                MetadataSchema[] schemas = MetadataSchema.findAll(ctx);
+                names = new String[schemas.length];
+                for (int i = 0; i < schemas.length; i++) {
+                    names[i] = schemas[i].getName();
                 }
+                schemaNames = names;
             } finally {
                 ctx.abort();
             }
         }
-        writer.endStanza();
-        writer.close();
+        return names;
     }
 
    /*
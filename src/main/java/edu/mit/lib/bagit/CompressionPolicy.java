@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+/**
+ * CompressionPolicy decides how bag files are compressed when packaged.
+ * Files whose content is already compressed (images, audio, video, PDFs,
+ * archives) gain nothing from deflation, so are stored as-is; all other
+ * files are deflated at a configurable level. Already-compressed content is
+ * recognized by MIME type, file extension, leading 'magic' bytes, or failing
+ * those, a quick entropy probe of the leading bytes.
+ *
+ * @author richardrodgers
+ */
+
+public class CompressionPolicy {
+
+    // number of leading bytes examined to classify content
+    static final int PROBE_SIZE = 4096;
+    // bits per byte above which a probe is deemed incompressible
+    static final double ENTROPY_LIMIT = 7.5;
+
+    // extensions of commonly already-compressed formats
+    private static final String[] COMPRESSED_EXTS = {
+        "jpg", "jpeg", "jp2", "png", "gif", "webp",
+        "mp3", "m4a", "aac", "ogg", "oga", "flac",
+        "mp4", "m4v", "mov", "mkv", "webm", "avi", "wmv", "ogv",
+        "pdf", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "jar",
+        "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub"
+    };
+
+    // MIME types of commonly already-compressed formats - besides audio/* and video/*
+    private static final String[] COMPRESSED_TYPES = {
+        "image/jpeg", "image/jp2", "image/png", "image/gif", "image/webp",
+        "application/pdf", "application/zip", "application/gzip", "application/x-gzip",
+        "application/x-bzip2", "application/x-xz", "application/x-7z-compressed",
+        "application/java-archive", "application/epub+zip"
+    };
+
+    /**
+     * Policy that deflates every file, irrespective of content
+     */
+    public static final CompressionPolicy DEFLATE_ALL = new CompressionPolicy(Deflater.DEFAULT_COMPRESSION, false);
+
+    /**
+     * Policy that stores every file uncompressed
+     */
+    public static final CompressionPolicy STORE_ALL = new CompressionPolicy(Deflater.NO_COMPRESSION, false);
+
+    private final int level;
+    private final boolean sniff;
+    private final Set<String> extensions = new HashSet<>();
+    private final Set<String> mimeTypes = new HashSet<>();
+
+    /**
+     * Returns a content-aware policy deflating compressible content at default level.
+     */
+    public CompressionPolicy() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Returns a content-aware policy deflating compressible content at passed level.
+     *
+     * @param level the deflate level (0-9, or -1 for default)
+     */
+    public CompressionPolicy(int level) {
+        this(level, true);
+        extensions.addAll(Arrays.asList(COMPRESSED_EXTS));
+        mimeTypes.addAll(Arrays.asList(COMPRESSED_TYPES));
+    }
+
+    private CompressionPolicy(int level, boolean sniff) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.level = level;
+        this.sniff = sniff;
+    }
+
+    /**
+     * Returns the deflate level used for compressible content.
+     *
+     * @return level the deflate level
+     */
+    public int level() {
+        return level;
+    }
+
+    /**
+     * Adds file extensions (without the dot) to be stored uncompressed.
+     *
+     * @param exts the file extensions
+     * @return policy this policy
+     */
+    public CompressionPolicy storeExtensions(String... exts) {
+        for (String ext : exts) {
+            extensions.add(ext.toLowerCase());
+        }
+        return this;
+    }
+
+    /**
+     * Adds MIME types to be stored uncompressed.
+     *
+     * @param types the MIME types
+     * @return policy this policy
+     */
+    public CompressionPolicy storeMimeTypes(String... types) {
+        for (String type : types) {
+            mimeTypes.add(type.toLowerCase());
+        }
+        return this;
+    }
+
+    /**
+     * Returns whether a file should be stored uncompressed.
+     *
+     * @param name the file name or path
+     * @param mimeType the MIME type of the file content, or null if unknown
+     * @param head the leading bytes of the file content
+     * @param len the number of leading bytes available
+     * @return store true if content should be stored uncompressed
+     */
+    public boolean store(String name, String mimeType, byte[] head, int len) {
+        if (level == Deflater.NO_COMPRESSION) {
+            return true;
+        }
+        if (! sniff) {
+            return false;
+        }
+        if (mimeType != null) {
+            String type = mimeType.toLowerCase();
+            if (mimeTypes.contains(type) ||
+                type.startsWith("audio/") || type.startsWith("video/")) {
+                return true;
+            }
+        }
+        int dot = name.lastIndexOf(".");
+        if (dot > name.lastIndexOf("/") && extensions.contains(name.substring(dot + 1).toLowerCase())) {
+            return true;
+        }
+        return hasMagic(head, len) || entropy(head, len) > ENTROPY_LIMIT;
+    }
+
+    // recognizes signatures of common compressed formats
+    static boolean hasMagic(byte[] b, int len) {
+        if (len < 4) {
+            return false;
+        }
+        int b0 = b[0] & 0xff, b1 = b[1] & 0xff, b2 = b[2] & 0xff, b3 = b[3] & 0xff;
+        return (b0 == 0xff && b1 == 0xd8 && b2 == 0xff) ||               // JPEG
+               (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') ||    // PNG
+               (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8') ||     // GIF
+               (b0 == '%' && b1 == 'P' && b2 == 'D' && b3 == 'F') ||     // PDF
+               (b0 == 'P' && b1 == 'K' && b2 == 3 && b3 == 4) ||         // ZIP & friends
+               (b0 == 0x1f && b1 == 0x8b) ||                             // GZIP
+               (b0 == 'B' && b1 == 'Z' && b2 == 'h') ||                  // BZIP2
+               (b0 == 0xfd && b1 == '7' && b2 == 'z' && b3 == 'X') ||    // XZ
+               (b0 == '7' && b1 == 'z' && b2 == 0xbc && b3 == 0xaf) ||   // 7z
+               (b0 == 'O' && b1 == 'g' && b2 == 'g' && b3 == 'S') ||     // Ogg
+               (b0 == 'f' && b1 == 'L' && b2 == 'a' && b3 == 'C') ||     // FLAC
+               (b0 == 'I' && b1 == 'D' && b2 == '3') ||                  // MP3
+               (len >= 8 && b[4] == 'f' && b[5] == 't' && b[6] == 'y' && b[7] == 'p'); // MP4/MOV
+    }
+
+    // Shannon entropy, in bits per byte, of leading bytes
+    static double entropy(byte[] b, int len) {
+        // too few bytes to judge - treat as compressible
+        if (len < 512) {
+            return 0.0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < len; i++) {
+            counts[b[i] & 0xff]++;
+        }
+        double entropy = 0.0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double)count / len;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
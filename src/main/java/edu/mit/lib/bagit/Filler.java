@@ -6,6 +6,7 @@
 package edu.mit.lib.bagit;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
@@ -13,29 +14,29 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.DigestInputStream;
+import java.nio.file.StandardOpenOption;
 import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
-
-/*
-import org.apache.commons.compress.archivers.ArchiveOutputStream;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
-*/
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import static edu.mit.lib.bagit.Bag.*;
 
@@ -43,6 +44,8 @@ import static edu.mit.lib.bagit.Bag.*;
  * Filler is a builder class used to construct bags conformant to LC Bagit spec - version 0.97.
  * Filler objects serialize themselves to either a loose directory, a compressed archive file (supported
  * formats zip or tgz) or a stream, abiding by the serialization recommendations of the specification.
+ * Fillers may also stream bag contents directly into an archive as they are added, so that no bag
+ * directory is ever staged.
  *
  * See README for sample invocations and API description.
  *
@@ -53,17 +56,17 @@ public class Filler {
 
     // directory root of bag
     private Path base;
-    // checksum algorithm
-    private String csAlg;
+    // checksum algorithms
+    private List<String> csAlgs;
     // automatic metadata generation flag
     private boolean autogen = true;
     // total payload size
     private long payloadSize = 0L;
     // number of payload files
     private int payloadCount = 0;
-    // manifest writers
-    private FlatWriter tagWriter;
-    private FlatWriter manWriter;
+    // manifest writers - one per algorithm
+    private ManifestSet tagManifests;
+    private ManifestSet manifests;
     // optional flat writers
     private Map<String, FlatWriter> writers;
     // optional bag streams
@@ -72,6 +75,24 @@ public class Filler {
     private boolean built;
     // transient bag?
     private boolean transientBag;
+    // archive being filled directly, if streaming
+    private ZipArchiver archive;
+    // format and location of streamed archive
+    private String format;
+    private Path pkgFile;
+    // digests the package as streamed, when switched on
+    private DigestOutputStream pkgDigest;
+    private String pkgChecksum;
+    // bag paths already written to streamed archive
+    private Set<String> entries;
+    // is an archive entry being written?
+    private boolean entryOpen;
+    // compression policy for packaging
+    private CompressionPolicy compression = new CompressionPolicy();
+    // CRCs of bag files to be stored uncompressed when packaged - null if not yet computed
+    private Map<Path, Long> storedCrcs = new HashMap<>();
+    // executor compressing package contents - if null, compress on building thread
+    private ExecutorService pool;
 
     /**
      * Returns a new Filler (bag builder) instance using
@@ -101,21 +122,66 @@ public class Filler {
      * @param csAlgorithm checksum algorithm string - if null use default
      */
     public Filler(Path base, String csAlgorithm) throws IOException {
-        if (base != null) {
-            this.base = base;
-        } else { 
-            this.base = Files.createTempDirectory("bag");
-            transientBag = true;
-        }
-        csAlg = (csAlgorithm != null) ? csAlgorithm : CS_ALGO;
-        Path dirPath = bagFile(DATA_DIR);
-        if (Files.notExists(dirPath)) {
-            Files.createDirectories(dirPath);
-        } 
+        this(base, (csAlgorithm != null) ? Collections.singleton(csAlgorithm) : null, null);
+    }
+
+    /**
+     * Returns a new filler (bag builder) instance using passed directory
+     * and checksum algorithms, which streams bag contents directly into an archive
+     * of the passed format if one is given. A manifest and tag manifest are written
+     * for each algorithm, with all checksums computed in a single read of each file.
+     * Streamed bags write each payload or tag file into the archive as it is added,
+     * computing checksums in the same pass; manifests and the bagit declaration are
+     * written last. Only one payload or tag stream may be open at a time when streaming.
+     *
+     * @param base directory for bag - if null, create temporary location
+     * @param csAlgorithms checksum algorithm strings - if null or empty use default
+     * @param format archive format to stream into ('zip') - if null, build bag directory
+     */
+    public Filler(Path base, Set<String> csAlgorithms, String format) throws IOException {
+        if (format != null) {
+            if (! DFLT_FMT.equals(format)) {
+                throw new IOException("Unsupported package format: " + format);
+            }
+            if (base != null) {
+                this.base = base;
+            } else {
+                Path tmpFile = Files.createTempFile("bag", "." + format);
+                String tmpName = tmpFile.getFileName().toString();
+                this.base = tmpFile.resolveSibling(tmpName.substring(0, tmpName.lastIndexOf(".")));
+                transientBag = true;
+            }
+            this.format = format;
+            pkgFile = this.base.getParent().resolve(this.base.getFileName().toString() + "." + format);
+            pkgDigest = new DigestOutputStream(Files.newOutputStream(pkgFile), null);
+            pkgDigest.on(false);
+            archive = new ZipArchiver(new BufferedOutputStream(pkgDigest), null);
+            entries = new HashSet<>();
+        } else {
+            if (base != null) {
+                this.base = base;
+            } else { 
+                this.base = Files.createTempDirectory("bag");
+                transientBag = true;
+            }
+            Path dirPath = bagFile(DATA_DIR);
+            if (Files.notExists(dirPath)) {
+                Files.createDirectories(dirPath);
+            }
+        }
+        csAlgs = new ArrayList<>();
+        for (String csAlg : (csAlgorithms != null && csAlgorithms.size() > 0) ?
+                            csAlgorithms : Collections.singleton(CS_ALGO)) {
+            // accept BagIt names ('sha256') as well as Java names ('SHA-256')
+            if (! csAlgs.contains(jcaName(csAlg))) {
+                csAlgs.add(jcaName(csAlg));
+            }
+        }
+        // fail fast on unknown algorithms
+        digesters();
         // prepare manifest writers
-        String sfx = csAlg.toLowerCase() + ".txt";
-        tagWriter = new FlatWriter(bagFile(TAGMANIF_FILE + sfx), null, null);
-        manWriter = new FlatWriter(bagFile(MANIF_FILE + sfx), null, tagWriter);
+        tagManifests = new ManifestSet(TAGMANIF_FILE, null);
+        manifests = new ManifestSet(MANIF_FILE, tagManifests);
         writers = new HashMap<>();
         streams = new HashMap<>();
     } 
@@ -129,25 +195,29 @@ public class Filler {
             metadata(MetadataName.PAYLOAD_OXNUM, String.valueOf(payloadSize) + "." + String.valueOf(payloadCount));
             metadata("Bag-Software-Agent", "MIT BagIt Lib v:" + LIB_VSN);
         }
+        // close all optional output streams - first, since streamed
+        // archives can only write one entry at a time
+        Iterator<String> sIter = streams.keySet().iterator();
+        while (sIter.hasNext()) {
+            streams.get(sIter.next()).close();
+        }
         // close all optional writers' tag files
         Iterator<String> wIter = writers.keySet().iterator();
         while (wIter.hasNext()) {
             getWriter(wIter.next()).close();
         }
-        // close all optional output streams
-        Iterator<String> sIter = streams.keySet().iterator();
-        while (sIter.hasNext()) {
-            getStream(null, sIter.next(), null, true).close();
-        }
-        // close the manifest file
-        manWriter.close();
+        // close the manifest files
+        manifests.close();
         // write out bagit declaration file
-        FlatWriter fwriter = new FlatWriter(bagFile(DECL_FILE), null, tagWriter);
+        FlatWriter fwriter = new FlatWriter(DECL_FILE, tagManifests);
         fwriter.writeLine("BagIt-Version: " + BAGIT_VSN);
         fwriter.writeLine("Tag-File-Character-Encoding: " + ENCODING);
         fwriter.close();
-        // close tag manifest file of previous tag files
-        tagWriter.close();
+        // close tag manifest files of previous tag files
+        tagManifests.close();
+        if (archive != null) {
+            archive.close();
+        }
         built = true;
     }
 
@@ -160,6 +230,73 @@ public class Filler {
         return this;
     }
 
+    /**
+     * Sets the policy deciding how bag files are compressed when packaged.
+     * Applies only to files added after it is set. The default policy
+     * stores already-compressed content and deflates all else.
+     *
+     * @param policy the compression policy
+     * @return Filler this Filler
+     */
+    public Filler compression(CompressionPolicy policy) {
+        compression = policy;
+        return this;
+    }
+
+    /**
+     * Sets the executor on which package contents are compressed. Large files are
+     * compressed in independent blocks, and successive files overlap, so packaging
+     * can use as many cores as the executor has threads. The executor may be shared
+     * among fillers. Without one, contents are compressed on the building thread.
+     *
+     * @param pool the executor to compress on
+     * @return Filler this Filler
+     */
+    public Filler compressWith(ExecutorService pool) {
+        this.pool = pool;
+        if (archive != null) {
+            archive.executor(pool);
+        }
+        return this;
+    }
+
+    /**
+     * Computes a checksum of the package as it is streamed, so that it need
+     * not be read back to obtain one. Only for streamed bags, and only before
+     * any content has been added.
+     *
+     * @param csAlgorithm the checksum algorithm, e.g. 'MD5'
+     * @return Filler this Filler
+     */
+    public Filler packageDigest(String csAlgorithm) throws IOException {
+        if (archive == null || ! entries.isEmpty()) {
+            throw new IllegalStateException("Package digest requires a streamed bag with no content yet");
+        }
+        try {
+            pkgDigest.setMessageDigest(MessageDigest.getInstance(csAlgorithm));
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IOException("No such algorithm: " + csAlgorithm);
+        }
+        pkgDigest.on(true);
+        return this;
+    }
+
+    /**
+     * Returns the checksum of the package, once built, if a package digest was requested.
+     *
+     * @return checksum the package checksum, or null if not computed
+     */
+    public String packageChecksum() throws IOException {
+        if (pkgDigest == null || pkgDigest.getMessageDigest() == null) {
+            return null;
+        }
+        buildBag();
+        if (pkgChecksum == null) {
+            pkgChecksum = toHex(pkgDigest.getMessageDigest().digest());
+        }
+        return pkgChecksum;
+    }
+
     /**
      * Adds a file to the payload at the root of the data
      * directory tree - convenience method when no payload hierarchy needed.
@@ -180,7 +317,82 @@ public class Filler {
      * @return Filler this Filler
      */
     public Filler payload(String relPath, Path file) throws IOException {
-        return payload(relPath, Files.newInputStream(file));
+        return payload(relPath, file, null, null);
+    }
+
+    /**
+     * Adds a file, of the passed MIME type and known checksums, to the payload
+     * at the specified relative path from the root of the data directory tree.
+     * No bytes are copied through the JVM where avoidable: a bag directory
+     * on the same file system hard-links the file, else the file system copies
+     * it (FileChannel.transferTo). Checksums are computed only if those passed
+     * do not cover all bag algorithms - nor are they verified, so must be trusted.
+     * The file must not be altered while the bag is in use.
+     *
+     * @param relPath the relative path of the file
+     * @param file the file path to add to the payload
+     * @param mimeType the MIME type of the content, or null if unknown
+     * @param checksums map of checksum algorithm to checksum, or null if unknown
+     * @return Filler this Filler
+     */
+    public Filler payload(String relPath, Path file, String mimeType, Map<String, String> checksums) throws IOException {
+        String bagPath = DATA_PATH + relPath;
+        if (exists(bagPath)) {
+            throw new IllegalStateException("Payload file already exists at: " + relPath);
+        }
+        // probe leading bytes to decide whether to compress
+        byte[] head = new byte[CompressionPolicy.PROBE_SIZE];
+        int len = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            int num = 0;
+            while (len < head.length && (num = in.read(head, len, head.length - len)) != -1) {
+                len += num;
+            }
+        }
+        boolean store = compression.store(relPath, mimeType, head, len);
+        String[] sums = knownSums(checksums);
+        MessageDigest[] digests = (sums != null) ? new MessageDigest[0] : digesters();
+        if (archive != null) {
+            // streamed - bytes must pass through the archiver, but need not be digested
+            try (InputStream in = Files.newInputStream(file); OutputStream out = bagOutput(bagPath, store)) {
+                payloadSize += copy(in, out, digests, null);
+            }
+        } else {
+            Path target = tagFile(bagPath);
+            boolean linked = true;
+            try {
+                Files.createLink(target, file);
+            } catch (IOException | UnsupportedOperationException e) {
+                // another file system, or links not permitted
+                linked = false;
+            }
+            // a CRC is computed only alongside checksums - else when packaged
+            CRC32 crc = (store && sums == null) ? new CRC32() : null;
+            if (linked) {
+                if (sums == null) {
+                    digest(file, digests, crc);
+                }
+            } else if (sums == null) {
+                // must read bytes anyway - digest while copying
+                try (InputStream in = Files.newInputStream(file); OutputStream out = Files.newOutputStream(target)) {
+                    copy(in, out, digests, crc);
+                }
+            } else {
+                transfer(file, target);
+            }
+            if (store) {
+                storedCrcs.put(target, (crc != null) ? crc.getValue() : null);
+            }
+            payloadSize += Files.size(target);
+        }
+        payloadCount++;
+        // record checksums
+        if (sums != null) {
+            manifests.record(sums, bagPath);
+        } else {
+            manifests.record(digests, bagPath);
+        }
+        return this;
     }
 
     /**
@@ -192,19 +404,45 @@ public class Filler {
      * @return Filler this Filler
      */
     public Filler payload(String relPath, InputStream is) throws IOException {
-        if (Files.exists(dataFile(relPath))) {
+        return payload(relPath, is, null);
+    }
+
+    /**
+     * Adds the contents of the passed stream, of the passed MIME type, to the
+     * payload at the specified relative path in the data directory tree.
+     * The MIME type informs whether the content is compressed when packaged.
+     *
+     * @param relPath the relative path of the file
+     * @param is the input stream to read.
+     * @param mimeType the MIME type of the content, or null if unknown
+     * @return Filler this Filler
+     */
+    public Filler payload(String relPath, InputStream is, String mimeType) throws IOException {
+        if (exists(DATA_PATH + relPath)) {
             throw new IllegalStateException("Payload file already exists at: " + relPath);
         }
-        // wrap stream in digest stream
-        try (DigestInputStream dis = 
-            new DigestInputStream(is, MessageDigest.getInstance(csAlg))) {
-            payloadSize += Files.copy(dis, dataFile(relPath));
-            payloadCount++;
-            // record checksum
-            manWriter.writeLine(toHex(dis.getMessageDigest().digest()) + " " + DATA_PATH + relPath);
-        } catch (NoSuchAlgorithmException nsaE) {
-            throw new IOException("no algorithm: " + csAlg);
+        // probe leading bytes to decide whether to compress
+        PushbackInputStream pin = new PushbackInputStream(is, CompressionPolicy.PROBE_SIZE);
+        byte[] head = new byte[CompressionPolicy.PROBE_SIZE];
+        int len = 0;
+        int num = 0;
+        while (len < head.length && (num = pin.read(head, len, head.length - len)) != -1) {
+            len += num;
+        }
+        pin.unread(head, 0, len);
+        boolean store = compression.store(relPath, mimeType, head, len);
+        // compute checksums (and CRC if stored when packaged) while copying
+        MessageDigest[] digests = digesters();
+        CRC32 crc = (store && archive == null) ? new CRC32() : null;
+        try (InputStream in = pin; OutputStream out = bagOutput(DATA_PATH + relPath, store)) {
+            payloadSize += copy(in, out, digests, crc);
+        }
+        if (crc != null) {
+            storedCrcs.put(bagFile(DATA_PATH + relPath), crc.getValue());
         }
+        payloadCount++;
+        // record checksums
+        manifests.record(digests, DATA_PATH + relPath);
         return this;
     }
 
@@ -225,6 +463,48 @@ public class Filler {
         return this;
     }
 
+    /**
+     * Adds a reference URL to payload contents of known checksums - ie. to the
+     * fetch.txt file, and to the manifests, so that the fetched contents
+     * can be verified.
+     *
+     * @param relPath the relative path of the resource
+     * @param size the expected size in bytes of the resource
+     * @param url the URL of the resource
+     * @param checksums map of checksum algorithm to checksum - one for each bag algorithm
+     * @return Filler this Filler
+     */
+    public Filler payloadRef(String relPath, long size, String url, Map<String, String> checksums) throws IOException {
+        String[] hexSums = knownSums(checksums);
+        if (hexSums == null) {
+            throw new IllegalArgumentException("No checksum for each of " + csAlgs + " for: " + relPath);
+        }
+        payloadRef(relPath, size, url);
+        manifests.record(hexSums, DATA_PATH + relPath);
+        return this;
+    }
+
+    // returns passed checksums in algorithm order - or null unless all algorithms covered
+    private String[] knownSums(Map<String, String> checksums) {
+        if (checksums == null) {
+            return null;
+        }
+        Map<String, String> sums = new HashMap<>();
+        for (String csAlg : checksums.keySet()) {
+            if (checksums.get(csAlg) != null) {
+                sums.put(jcaName(csAlg), checksums.get(csAlg).toLowerCase());
+            }
+        }
+        String[] hexSums = new String[csAlgs.size()];
+        for (int i = 0; i < hexSums.length; i++) {
+            hexSums[i] = sums.get(csAlgs.get(i));
+            if (hexSums[i] == null) {
+                return null;
+            }
+        }
+        return hexSums;
+    }
+
     /**
      * Obtains an output stream to a payload file at a relative path.
      *
@@ -232,10 +512,10 @@ public class Filler {
      * @return stream an output stream to payload file
      */
     public OutputStream payloadStream(String relPath) throws IOException {
-        if (Files.exists(dataFile(relPath))) {
+        if (exists(DATA_PATH + relPath)) {
             throw new IllegalStateException("Payload file already exists at: " + relPath);
         }
-        return getStream(dataFile(relPath), relPath, manWriter, true);
+        return getStream(relPath, manifests, true);
     }
 
     /**
@@ -263,18 +543,16 @@ public class Filler {
         if (relPath.startsWith(DATA_PATH)) {
             throw new IOException("Tag files not allowed in paylod directory");
         }
-        if (Files.exists(bagFile(relPath))) {
+        if (exists(relPath)) {
             throw new IllegalStateException("Tag file already exists at: " + relPath);
         }
-        // wrap stream in digest stream
-        try (DigestInputStream dis = 
-             new DigestInputStream(is, MessageDigest.getInstance(csAlg))) {
-            Files.copy(dis, tagFile(relPath));
-            // record checksum
-            tagWriter.writeLine(toHex(dis.getMessageDigest().digest()) + " " + relPath);
-        } catch (NoSuchAlgorithmException nsaE) {
-            throw new IOException("no algorithm: " + csAlg);
+        // compute checksums while copying
+        MessageDigest[] digests = digesters();
+        try (InputStream in = is; OutputStream out = bagOutput(relPath, false)) {
+            copy(in, out, digests, null);
         }
+        // record checksums
+        tagManifests.record(digests, relPath);
         return this;
     }
 
@@ -285,10 +563,10 @@ public class Filler {
      * @return stream an output stream to the tag file
      */
     public OutputStream tagStream(String relPath) throws IOException {
-        if (Files.exists(tagFile(relPath))) {
+        if (exists(relPath)) {
             throw new IllegalStateException("Tag file already exists at: " + relPath);
         }
-        return getStream(tagFile(relPath), relPath, tagWriter, false);
+        return getStream(relPath, tagManifests, false);
     }
 
     /**
@@ -327,17 +605,6 @@ public class Filler {
         return this;
     }
 
-    private Path dataFile(String name) throws IOException {
-        // all user-defined files live in payload area - ie. under 'data'
-        Path dataFile = bagFile(DATA_DIR).resolve(name);
-        // create needed dirs
-        Path parentFile = dataFile.getParent();
-        if (! Files.isDirectory(parentFile)) {
-            Files.createDirectories(parentFile);
-        }
-        return dataFile;
-    }
-
     private Path tagFile(String name) throws IOException {
         // all user-defined tag files live anywhere in the bag
         Path tagFile = bagFile(name);
@@ -353,28 +620,218 @@ public class Filler {
         return base.resolve(name);
     }
 
+    private boolean exists(String bagPath) {
+        return (archive != null) ? entries.contains(bagPath) : Files.exists(bagFile(bagPath));
+    }
+
+    // opens bag file for writing - an archive entry if streaming, else a file in bag directory
+    private OutputStream bagOutput(String bagPath, boolean store) throws IOException {
+        return (archive != null) ? new EntryOutputStream(bagPath, store) : Files.newOutputStream(tagFile(bagPath));
+    }
+
+    private long copy(InputStream in, OutputStream out, MessageDigest[] digests, CRC32 crc) throws IOException {
+        byte[] buf = new byte[8192];
+        long total = 0L;
+        int num = 0;
+        // time spent reading, writing and digesting, if timed
+        boolean timed = Metrics.enabled();
+        long[] nanos = new long[3];
+        long mark = timed ? System.nanoTime() : 0L;
+        while ((num = in.read(buf)) != -1) {
+            mark = lap(nanos, 0, mark, timed);
+            out.write(buf, 0, num);
+            mark = lap(nanos, 1, mark, timed);
+            for (MessageDigest digest : digests) {
+                digest.update(buf, 0, num);
+            }
+            if (crc != null) {
+                crc.update(buf, 0, num);
+            }
+            mark = lap(nanos, 2, mark, timed);
+            total += num;
+        }
+        if (timed) {
+            lap(nanos, 0, mark, timed);
+            Metrics.record(Metrics.READ, nanos[0], total);
+            Metrics.record(Metrics.WRITE, nanos[1], total);
+            if (digests.length > 0 || crc != null) {
+                Metrics.record(Metrics.DIGEST, nanos[2], total);
+            }
+        }
+        return total;
+    }
+
+    // adds time since mark to the phase total, returning the new mark
+    private static long lap(long[] nanos, int phase, long mark, boolean timed) {
+        if (! timed) {
+            return 0L;
+        }
+        long now = System.nanoTime();
+        nanos[phase] += now - mark;
+        return now;
+    }
+
+    // reads file once, updating digests and CRC (if any)
+    private void digest(Path file, MessageDigest[] digests, CRC32 crc) throws IOException {
+        long start = Metrics.start();
+        byte[] buf = new byte[65536];
+        ByteBuffer bbuf = ByteBuffer.wrap(buf);
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            int num = 0;
+            while ((num = in.read(bbuf)) != -1) {
+                for (MessageDigest digest : digests) {
+                    digest.update(buf, 0, num);
+                }
+                if (crc != null) {
+                    crc.update(buf, 0, num);
+                }
+                bbuf.clear();
+            }
+            Metrics.stop(Metrics.DIGEST, start, in.size());
+        }
+    }
+
+    // copies file by file system transfer, without passing bytes through the JVM heap
+    private void transfer(Path from, Path to) throws IOException {
+        long start = Metrics.start();
+        try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to, StandardOpenOption.CREATE,
+                                                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long pos = 0L;
+            long num = 0L;
+            while (pos < size && (num = in.transferTo(pos, size - pos, out)) > 0) {
+                pos += num;
+            }
+            Metrics.stop(Metrics.WRITE, start, pos);
+        }
+    }
+
+    // returns a fresh digester for each checksum algorithm, in algorithm order
+    private MessageDigest[] digesters() throws IOException {
+        MessageDigest[] digests = new MessageDigest[csAlgs.size()];
+        for (int i = 0; i < digests.length; i++) {
+            try {
+                digests[i] = MessageDigest.getInstance(csAlgs.get(i));
+            } catch (NoSuchAlgorithmException nsaE) {
+                throw new IOException("no algorithm: " + csAlgs.get(i));
+            }
+        }
+        return digests;
+    }
+
     private synchronized FlatWriter getWriter(String name) throws IOException {
         FlatWriter writer = writers.get(name);
         if (writer == null) {
-            writer = new FlatWriter(bagFile(name), null, tagWriter);
+            writer = new FlatWriter(name, tagManifests);
             writers.put(name, writer);
         }
         return writer;
     }
 
-    private BagOutputStream getStream(Path path, String name, FlatWriter tailWriter, boolean isPayload) throws IOException {
+    private BagOutputStream getStream(String name, ManifestSet tailWriter, boolean isPayload) throws IOException {
         BagOutputStream stream = streams.get(name);
         if (stream == null) {
-            stream = new BagOutputStream(path, name, tailWriter, isPayload);
+            String bagPath = isPayload ? DATA_PATH + name : name;
+            stream = new BagOutputStream(bagOutput(bagPath, false), name, tailWriter, isPayload);
             streams.put(name, stream);
         }
         return stream;
     }
 
+    // writes a single entry to the streamed archive - a stored entry needs its
+    // size and CRC in advance, so 'stored' entries are deflated at level 0
+    class EntryOutputStream extends OutputStream {
+
+        private boolean closed = false;
+
+        private EntryOutputStream(String bagPath, boolean store) throws IOException {
+            if (entryOpen) {
+                throw new IllegalStateException("Streamed bag: cannot write " + bagPath + " while another file is open");
+            }
+            if (! entries.add(bagPath)) {
+                throw new IllegalStateException("File already exists at: " + bagPath);
+            }
+            archive.putEntry(base.getFileName().toString() + "/" + bagPath,
+                             store ? Deflater.NO_COMPRESSION : compression.level());
+            entryOpen = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            archive.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (! closed) {
+                archive.closeEntry();
+                entryOpen = false;
+                closed = true;
+            }
+        }
+    }
+
+    // holds tag file contents in memory until closed, then writes them to the streamed archive
+    class BufferedEntryStream extends ByteArrayOutputStream {
+
+        private final String bagPath;
+
+        private BufferedEntryStream(String bagPath) {
+            this.bagPath = bagPath;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (OutputStream out = new EntryOutputStream(bagPath, false)) {
+                writeTo(out);
+            }
+        }
+    }
+
+    // manifests of one kind (payload or tag), one for each checksum algorithm
+    class ManifestSet {
+
+        private final List<FlatWriter> writers = new ArrayList<>();
+
+        private ManifestSet(String prefix, ManifestSet tailWriter) throws IOException {
+            for (String csAlg : csAlgs) {
+                writers.add(new FlatWriter(prefix + bagItName(csAlg) + ".txt", tailWriter));
+            }
+        }
+
+        // records checksums (in algorithm order) of file at bag path
+        private void record(MessageDigest[] digests, String path) throws IOException {
+            String[] sums = new String[digests.length];
+            for (int i = 0; i < digests.length; i++) {
+                sums[i] = toHex(digests[i].digest());
+            }
+            record(sums, path);
+        }
+
+        private void record(String[] sums, String path) throws IOException {
+            for (int i = 0; i < sums.length; i++) {
+                writers.get(i).writeLine(sums[i] + " " + path);
+            }
+        }
+
+        private void close() throws IOException {
+            for (FlatWriter writer : writers) {
+                writer.close();
+            }
+        }
+    }
+
     class FlatWriter extends BagOutputStream {
     
-        private FlatWriter(Path file, String brPath, FlatWriter tailWriter) throws IOException {
-            super(file, brPath, tailWriter, false);
+        private FlatWriter(String name, ManifestSet tailWriter) throws IOException {
+            super((archive != null) ? new BufferedEntryStream(name) : Files.newOutputStream(tagFile(name)),
+                  name, tailWriter, false);
         }
 
         public void writeProperty(String key, String value) throws IOException {
@@ -396,41 +853,48 @@ public class Filler {
         }
     }
     
-    // wraps output stream in digester, and records results with tail writer
+    // wraps output stream in digesters, and records results with tail writers
     class BagOutputStream extends OutputStream {
 
         private final String relPath;
         private final OutputStream out;
-        private final DigestOutputStream dout;
-        private final FlatWriter tailWriter;
+        private final MessageDigest[] digests;
+        private final ManifestSet tailWriter;
         private final boolean isPayload;
         private boolean closed = false;
 
-        private BagOutputStream(Path file, String relPath, FlatWriter tailWriter, boolean isPayload) throws IOException {
-            try {
-                out = Files.newOutputStream(file);
-                dout = new DigestOutputStream(out, MessageDigest.getInstance(csAlg));
-                this.relPath = (relPath != null) ? relPath : file.getFileName().toString();
-                this.tailWriter = tailWriter;
-                this.isPayload = isPayload;
-            } catch (NoSuchAlgorithmException nsae) {
-                throw new IOException("no such algorithm: " + csAlg);
-            }
+        private BagOutputStream(OutputStream out, String relPath, ManifestSet tailWriter, boolean isPayload) throws IOException {
+            this.out = out;
+            digests = digesters();
+            this.relPath = relPath;
+            this.tailWriter = tailWriter;
+            this.isPayload = isPayload;
         }
 
         @Override
         public void write(int b) throws IOException {
-            dout.write(b);
+            out.write(b);
+            for (MessageDigest digest : digests) {
+                digest.update((byte)b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            for (MessageDigest digest : digests) {
+                digest.update(b, off, len);
+            }
         }
 
         @Override
         public synchronized void close() throws IOException {
             if (! closed) {
-                dout.flush();
+                out.flush();
                 out.close();
                 if (tailWriter != null) {
                     String path = isPayload ? DATA_PATH + relPath : relPath;
-                    tailWriter.writeLine(toHex(dout.getMessageDigest().digest()) + " " + path);
+                    tailWriter.record(digests, path);
                 }
                 closed = true;
             }
@@ -443,6 +907,9 @@ public class Filler {
      * @return dir the bag directory path
      */
     public Path toDirectory() throws IOException {
+        if (archive != null) {
+            throw new IllegalStateException("Streamed bag: no backing directory");
+        }
         buildBag();
         return base;
     }
@@ -529,6 +996,13 @@ public class Filler {
     private Path deflate(String format) throws IOException {
         // deflate this bag in situ (in current directory) using given packaging format
         buildBag();
+        if (archive != null) {
+            // streamed bag is already packaged
+            if (! this.format.equals(format)) {
+                throw new IOException("Streamed bag already packaged as: " + this.format);
+            }
+            return pkgFile;
+        }
         Path pkgFile = base.getParent().resolve(base.getFileName().toString() + "." + format);
         deflate(Files.newOutputStream(pkgFile), format);
         // remove base
@@ -539,59 +1013,72 @@ public class Filler {
     private void deflate(OutputStream out, String format) throws IOException {
         switch(format) {
             case "zip":
-                try (ZipOutputStream zout = new ZipOutputStream(
-                                            new BufferedOutputStream(out))) {
+                try (ZipArchiver zout = new ZipArchiver(new BufferedOutputStream(out), pool)) {
                     fillZip(base, base.getFileName().toString(), zout);
                 }
                 break;
-            /*
-            case "tgz": 
-                try (TarArchiveOutputStream tout = new TarArchiveOutputStream(
-                                                   new BufferedOutputStream(
-                                                   new GzipCompressorOutputStream(out)))) {
-                    fillArchive(base, base.getFileName().toString(), tout);
+            case "tgz":
+                try (TarArchiver tout = new TarArchiver(new BufferedOutputStream(
+                                                        new ParallelGzipOutputStream(out, pool, compression.level())))) {
+                    fillTar(base, base.getFileName().toString(), tout);
                 }
                 break;
-            */
             default:
                 throw new IOException("Unsupported package format: " + format);
         }
     }
-    
-    /*
-    private void fillArchive(Path dirFile, String relBase, ArchiveOutputStream out) throws IOException {
+
+    private void fillTar(Path dirFile, String relBase, TarArchiver tout) throws IOException {
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirFile)) {
             for (Path file : stream) {
                 String relPath = relBase + '/' + file.getFileName().toString();
                 if (Files.isDirectory(file)) {
-                    fillArchive(file, relPath, out);
+                    fillTar(file, relPath, tout);
                 } else {
-                    TarArchiveEntry entry = new TarArchiveEntry(relPath);
-                    entry.setSize(Files.size(file));
-                    entry.setModTime(0L);
-                    out.putArchiveEntry(entry);
-                    Files.copy(file, out);
-                    out.closeArchiveEntry();
+                    tout.putEntry(relPath, Files.size(file));
+                    try (InputStream in = Files.newInputStream(file)) {
+                        byte[] buf = new byte[8192];
+                        int num = 0;
+                        while ((num = in.read(buf)) != -1) {
+                            tout.write(buf, 0, num);
+                        }
+                    }
+                    tout.closeEntry();
                 }
             }
-        } 
+        }
     }
-    */
 
-    private void fillZip(Path dirFile, String relBase, ZipOutputStream zout) throws IOException {
+    private void fillZip(Path dirFile, String relBase, ZipArchiver zout) throws IOException {
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirFile)) {
             for (Path file : stream) {
                 String relPath = relBase + '/' + file.getFileName().toString();
                 if (Files.isDirectory(file)) {
                     fillZip(file, relPath, zout);
                 } else {
-                    ZipEntry entry = new ZipEntry(relPath);
-                    entry.setTime(0L);
-                    zout.putNextEntry(entry);
-                    Files.copy(file, zout);
+                    // store uncompressed if so decided when added
+                    if (storedCrcs.containsKey(file)) {
+                        Long crc = storedCrcs.get(file);
+                        if (crc == null) {
+                            // added without a pass over its bytes
+                            CRC32 fileCrc = new CRC32();
+                            digest(file, new MessageDigest[0], fileCrc);
+                            crc = fileCrc.getValue();
+                        }
+                        zout.putStoredEntry(relPath, Files.size(file), crc);
+                    } else {
+                        zout.putEntry(relPath, compression.level());
+                    }
+                    try (InputStream in = Files.newInputStream(file)) {
+                        byte[] buf = new byte[8192];
+                        int num = 0;
+                        while ((num = in.read(buf)) != -1) {
+                            zout.write(buf, 0, num);
+                        }
+                    }
                     zout.closeEntry();
                 }
             }
-        } 
+        }
     }
 }
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static edu.mit.lib.bagit.Bag.*;
+
+/**
+ * Inventory is a snapshot of a bag's contents joined against its manifests.
+ * It is computed from a single walk of the bag and a single parse of each
+ * manifest, and answers completeness questions - which files are missing
+ * or extra - without further filesystem access. Paths are bag-relative.
+ *
+ * @author richardrodgers
+ */
+
+public class Inventory {
+
+    // sizes of files present, except tag manifests
+    private final Map<String, Long> files = new HashMap<>();
+    // manifest checksums of each listed file, keyed by algorithm
+    private final Map<String, Map<String, String>> checksums = new HashMap<>();
+    private final List<String> csAlgs = new ArrayList<>();
+    private final List<String> missing = new ArrayList<>();
+    private final List<String> extra = new ArrayList<>();
+    private boolean holey;
+    private boolean declared;
+    private boolean hasData;
+    private boolean hasTagManifest;
+
+    Inventory(final Path baseDir) throws IOException {
+        final List<Path> tagManifests = new ArrayList<>();
+        final List<Path> manifests = new ArrayList<>();
+        Files.walkFileTree(baseDir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(baseDir.resolve(DATA_DIR))) {
+                    hasData = true;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String relPath = baseDir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                if (relPath.startsWith(TAGMANIF_FILE)) {
+                    tagManifests.add(file);
+                    return FileVisitResult.CONTINUE;
+                } else if (relPath.startsWith(MANIF_FILE)) {
+                    manifests.add(file);
+                } else if (relPath.equals(DECL_FILE)) {
+                    declared = true;
+                } else if (relPath.equals(REF_FILE)) {
+                    holey = true;
+                }
+                files.put(relPath, attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        for (Path manifest : manifests) {
+            String fileName = manifest.getFileName().toString();
+            String csAlg = jcaName(fileName.substring(MANIF_FILE.length(), fileName.lastIndexOf(".")));
+            csAlgs.add(csAlg);
+            addChecksums(csAlg, readManifest(manifest));
+        }
+        for (Path manifest : tagManifests) {
+            String fileName = manifest.getFileName().toString();
+            addChecksums(jcaName(fileName.substring(TAGMANIF_FILE.length(), fileName.lastIndexOf("."))), readManifest(manifest));
+        }
+        hasTagManifest = tagManifests.size() > 0;
+        // join contents and manifests
+        for (String relPath : checksums.keySet()) {
+            if (! files.containsKey(relPath)) {
+                missing.add(relPath);
+            }
+        }
+        for (String relPath : files.keySet()) {
+            // tag files are only accountable to tag manifests
+            if (! checksums.containsKey(relPath) && (relPath.startsWith(DATA_PATH) || hasTagManifest)) {
+                extra.add(relPath);
+            }
+        }
+        Collections.sort(missing);
+        Collections.sort(extra);
+    }
+
+    /**
+     * Returns whether the bag is complete: it declares itself a bag, has
+     * a payload directory, holds no content by reference, and contains
+     * exactly the files listed in its manifests.
+     *
+     * @return complete true if bag is complete
+     */
+    public boolean isComplete() {
+        return declared && hasData && ! holey && missing.isEmpty() && extra.isEmpty();
+    }
+
+    /**
+     * Returns whether the bag holds content by reference (has a fetch.txt).
+     *
+     * @return holey true if bag has content by reference
+     */
+    public boolean isHoley() {
+        return holey;
+    }
+
+    /**
+     * Returns the checksum algorithms of the payload manifests.
+     *
+     * @return algorithms the checksum algorithms
+     */
+    public List<String> csAlgorithms() {
+        return Collections.unmodifiableList(csAlgs);
+    }
+
+    /**
+     * Returns the files present in the bag, except tag manifests.
+     *
+     * @return files the bag-relative paths of files present
+     */
+    public Set<String> files() {
+        return Collections.unmodifiableSet(files.keySet());
+    }
+
+    /**
+     * Returns the size of a file present in the bag.
+     *
+     * @param relPath the bag-relative path of the file
+     * @return size the size in bytes, or -1 if file not present
+     */
+    public long size(String relPath) {
+        Long size = files.get(relPath);
+        return (size != null) ? size : -1L;
+    }
+
+    /**
+     * Returns the files listed in any manifest.
+     *
+     * @return files the bag-relative paths of files listed
+     */
+    public Set<String> listed() {
+        return Collections.unmodifiableSet(checksums.keySet());
+    }
+
+    /**
+     * Returns the manifest checksums of a listed file.
+     *
+     * @param relPath the bag-relative path of the file
+     * @return checksums map of algorithm to checksum, or null if file not listed
+     */
+    public Map<String, String> checksums(String relPath) {
+        return checksums.get(relPath);
+    }
+
+    /**
+     * Returns files listed in manifests but not present in the bag.
+     *
+     * @return missing the bag-relative paths of missing files
+     */
+    public List<String> missing() {
+        return Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * Returns files present in the bag but not listed in manifests.
+     * Tag files are considered only if the bag has a tag manifest.
+     *
+     * @return extra the bag-relative paths of extra files
+     */
+    public List<String> extra() {
+        return Collections.unmodifiableList(extra);
+    }
+
+    private void addChecksums(String csAlg, Map<String, String> manifest) {
+        for (String relPath : manifest.keySet()) {
+            Map<String, String> pathSums = checksums.get(relPath);
+            if (pathSums == null) {
+                pathSums = new HashMap<>();
+                checksums.put(relPath, pathSums);
+            }
+            pathSums.put(csAlg, manifest.get(relPath));
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static edu.mit.lib.bagit.Bag.*;
+
+/**
+ * Loader is a helper class used to obtain bags from their serialized forms:
+ * a loose bag directory, a zip archive package, or a zip or tgz package stream.
+ * Archive packages are read in place - bag files are read directly from the
+ * archive, so inspecting or validating a package costs only the bytes actually
+ * read, and no scratch space. Bags loaded from archives hold the archive open,
+ * and should be closed when no longer needed.
+ *
+ * Package streams are read in a single sequential pass: every file is digested
+ * as it streams by, and the digests checked against the manifests once all have
+ * been read (manifests customarily follow the payload). Payload files may be
+ * handed to a callback as they arrive, and are extracted to disk only if asked,
+ * so a stream may be received and verified in constant memory.
+ *
+ * See README for sample invocations and API description.
+ *
+ * @author richardrodgers
+ */
+
+public class Loader {
+
+    /**
+     * Receives the payload files of a bag stream, in stream order.
+     */
+    public interface PayloadHandler {
+        /**
+         * Handles a payload file. The stream need not be read to its end,
+         * nor closed - it is drained by the loader.
+         *
+         * @param relPath the relative path of the file from the data root directory
+         * @param in the file contents
+         */
+        void payload(String relPath, InputStream in) throws IOException;
+    }
+
+    // location of serialized bag
+    private final Path pkg;
+    // bag stream, and its format
+    private final InputStream in;
+    private final String format;
+    // checksum algorithms to compute for files preceding manifests
+    private Set<String> csAlgs = new LinkedHashSet<>(Collections.singleton(jcaName(CS_ALGO)));
+    // directory to extract streamed bag into, if any
+    private Path extractDir;
+
+    /**
+     * Returns a new Loader (bag loader) instance for a bag directory
+     * or a zip archive package.
+     *
+     * @param pkg the bag directory or package file
+     */
+    public Loader(Path pkg) {
+        this.pkg = pkg;
+        this.in = null;
+        this.format = null;
+    }
+
+    /**
+     * Returns a new Loader (bag loader) instance for a package stream
+     * of the passed format.
+     *
+     * @param in the package stream
+     * @param format the package format ('zip', or 'tgz')
+     */
+    public Loader(InputStream in, String format) throws IOException {
+        if (! (DFLT_FMT.equals(format) || TGZIP_FMT.equals(format))) {
+            throw new IOException("Unsupported package format: " + format);
+        }
+        this.pkg = null;
+        this.in = in;
+        this.format = format;
+    }
+
+    /**
+     * Sets the checksum algorithms computed for streamed files which precede
+     * the manifests. Algorithms of manifests already read are always computed.
+     * Default is MD5.
+     *
+     * @param csAlgorithms the checksum algorithms
+     * @return Loader this Loader
+     */
+    public Loader algorithms(String... csAlgorithms) {
+        csAlgs = new LinkedHashSet<>();
+        for (String csAlg : csAlgorithms) {
+            csAlgs.add(jcaName(csAlg));
+        }
+        return this;
+    }
+
+    /**
+     * Sets a directory into which a streamed bag is extracted as it is read.
+     *
+     * @param dir the directory to extract into
+     * @return Loader this Loader
+     */
+    public Loader extractTo(Path dir) {
+        extractDir = dir;
+        return this;
+    }
+
+    /**
+     * Returns the bag. For an archive package, bag files are read from
+     * the archive in place. A package stream is extracted (into a temporary
+     * directory, unless one has been set) and verified as it is read.
+     *
+     * @return bag the loaded bag
+     * @throws IOException if the bag stream does not validate
+     */
+    public Bag load() throws IOException {
+        if (in != null) {
+            if (extractDir == null) {
+                extractDir = Files.createTempDirectory("bag");
+            }
+            Receiver receiver = new Receiver(null);
+            ValidationReport report = receiver.receive();
+            if (! report.isValid()) {
+                throw new IOException("Invalid bag: " + report);
+            }
+            return new Bag(extractDir.resolve(receiver.bagName), false);
+        }
+        if (Files.isDirectory(pkg)) {
+            return new Bag(pkg, false);
+        }
+        String name = pkg.getFileName().toString();
+        if (! name.endsWith("." + DFLT_FMT)) {
+            throw new IOException("Unsupported package format: " + name);
+        }
+        FileSystem archive = FileSystems.newFileSystem(pkg, (ClassLoader)null);
+        try {
+            return new Bag(bagRoot(archive), false, archive);
+        } catch (IOException ioE) {
+            archive.close();
+            throw ioE;
+        }
+    }
+
+    /**
+     * Reads a package stream in a single pass, passing payload files to
+     * the handler as they arrive, and verifying all files against the
+     * bag manifests.
+     *
+     * @param handler the payload file handler - may be null
+     * @return report the validation report
+     */
+    public ValidationReport receive(PayloadHandler handler) throws IOException {
+        if (in == null) {
+            throw new IllegalStateException("Loader has no package stream");
+        }
+        return new Receiver(handler).receive();
+    }
+
+    // a serialized bag is a single top-level directory, named for the bag
+    private Path bagRoot(FileSystem archive) throws IOException {
+        Path bagRoot = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(archive.getPath("/"))) {
+            for (Path top : stream) {
+                if (bagRoot != null || ! Files.isDirectory(top)) {
+                    throw new IOException("Package has no single top-level bag directory: " + pkg);
+                }
+                bagRoot = top;
+            }
+        }
+        if (bagRoot == null) {
+            throw new IOException("Package is empty: " + pkg);
+        }
+        return bagRoot;
+    }
+
+    // reads a package stream, digesting each file and collecting manifests
+    private class Receiver {
+
+        private final PayloadHandler handler;
+        private String bagName;
+        // checksums computed for each file, keyed by algorithm, sizes and times taken
+        private final Map<String, Map<String, String>> computed = new HashMap<>();
+        private final Map<String, Long> sizes = new HashMap<>();
+        private final Map<String, Long> times = new HashMap<>();
+        // checksums listed in manifests, keyed by algorithm
+        private final Map<String, Map<String, String>> expected = new HashMap<>();
+        private final Set<String> algorithms = new LinkedHashSet<>(csAlgs);
+        private boolean hasTagManifest;
+
+        Receiver(PayloadHandler handler) {
+            this.handler = handler;
+        }
+
+        ValidationReport receive() throws IOException {
+            long start = System.currentTimeMillis();
+            if (DFLT_FMT.equals(format)) {
+                try (ZipInputStream zin = new ZipInputStream(in)) {
+                    ZipEntry entry = null;
+                    while ((entry = zin.getNextEntry()) != null) {
+                        if (! entry.isDirectory()) {
+                            entry(entry.getName(), zin);
+                        }
+                    }
+                }
+            } else {
+                try (InputStream gin = new GZIPInputStream(in)) {
+                    TarReader tin = new TarReader(gin);
+                    String name = null;
+                    while ((name = tin.next()) != null) {
+                        entry(name, tin.entry());
+                    }
+                }
+            }
+            return report(System.currentTimeMillis() - start);
+        }
+
+        private void entry(String name, InputStream entryIn) throws IOException {
+            int split = name.indexOf("/");
+            String top = (split > 0) ? name.substring(0, split) : null;
+            if (top == null || (bagName != null && ! bagName.equals(top))) {
+                throw new IOException("Package has no single top-level bag directory: " + name);
+            }
+            bagName = top;
+            String relPath = name.substring(split + 1);
+            long start = System.nanoTime();
+            List<String> csAlgList = new ArrayList<>(algorithms);
+            MessageDigest[] digests = new MessageDigest[csAlgList.size()];
+            for (int i = 0; i < digests.length; i++) {
+                try {
+                    digests[i] = MessageDigest.getInstance(csAlgList.get(i));
+                } catch (NoSuchAlgorithmException nsaE) {
+                    throw new IOException("no algorithm: " + csAlgList.get(i));
+                }
+            }
+            try (OutputStream out = extractor(name)) {
+                DigestingStream din = new DigestingStream(entryIn, digests, out);
+                if (relPath.startsWith(MANIF_FILE) || relPath.startsWith(TAGMANIF_FILE)) {
+                    manifest(relPath, din);
+                } else if (handler != null && relPath.startsWith(DATA_PATH)) {
+                    handler.payload(relPath.substring(DATA_PATH.length()), din);
+                }
+                din.drain();
+                sizes.put(relPath, din.count);
+            }
+            times.put(relPath, System.nanoTime() - start);
+            Map<String, String> sums = new HashMap<>();
+            for (int i = 0; i < digests.length; i++) {
+                sums.put(csAlgList.get(i), toHex(digests[i].digest()));
+            }
+            computed.put(relPath, sums);
+        }
+
+        // opens extraction output for entry, if extracting
+        private OutputStream extractor(String name) throws IOException {
+            if (extractDir == null) {
+                return null;
+            }
+            Path target = extractDir.resolve(name).normalize();
+            if (! target.startsWith(extractDir.normalize())) {
+                throw new IOException("Package entry outside bag: " + name);
+            }
+            Files.createDirectories(target.getParent());
+            return Files.newOutputStream(target);
+        }
+
+        private void manifest(String relPath, InputStream min) throws IOException {
+            boolean isTag = relPath.startsWith(TAGMANIF_FILE);
+            String prefix = isTag ? TAGMANIF_FILE : MANIF_FILE;
+            String csAlg = jcaName(relPath.substring(prefix.length(), relPath.lastIndexOf(".")));
+            hasTagManifest |= isTag;
+            // compute this algorithm for all subsequent files
+            algorithms.add(csAlg);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(min, StandardCharsets.UTF_8));
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                Map<String, String> pathSums = expected.get(parts[1]);
+                if (pathSums == null) {
+                    pathSums = new HashMap<>();
+                    expected.put(parts[1], pathSums);
+                }
+                pathSums.put(csAlg, parts[0]);
+            }
+        }
+
+        // joins computed and manifest checksums
+        private ValidationReport report(long elapsed) {
+            ValidationReport report = new ValidationReport();
+            if (! computed.containsKey(DECL_FILE) || computed.containsKey(REF_FILE)) {
+                report.incomplete();
+            }
+            for (String relPath : expected.keySet()) {
+                Map<String, String> sums = computed.get(relPath);
+                if (sums == null) {
+                    report.missing(relPath);
+                    continue;
+                }
+                boolean verified = false;
+                boolean matched = true;
+                Map<String, String> pathSums = expected.get(relPath);
+                for (String csAlg : pathSums.keySet()) {
+                    String sum = sums.get(csAlg);
+                    if (sum != null) {
+                        verified = true;
+                        matched &= sum.equals(pathSums.get(csAlg));
+                    }
+                }
+                if (verified) {
+                    report.checked(relPath, sizes.get(relPath), times.get(relPath), matched);
+                } else {
+                    report.unverified(relPath);
+                }
+            }
+            for (String relPath : computed.keySet()) {
+                // tag files are only accountable to tag manifests
+                if (! expected.containsKey(relPath) && ! relPath.startsWith(TAGMANIF_FILE) &&
+                    (relPath.startsWith(DATA_PATH) || hasTagManifest)) {
+                    report.extra(relPath);
+                }
+            }
+            if (! report.missing().isEmpty() || ! report.extra().isEmpty()) {
+                report.incomplete();
+            }
+            report.finish(elapsed);
+            return report;
+        }
+    }
+
+    // digests (and optionally copies) an entry's contents as they are read - never closes entry
+    private static class DigestingStream extends FilterInputStream {
+
+        private final MessageDigest[] digests;
+        private final OutputStream out;
+        private long count = 0L;
+
+        DigestingStream(InputStream in, MessageDigest[] digests, OutputStream out) {
+            super(in);
+            this.digests = digests;
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int num = super.read(b, off, len);
+            if (num > 0) {
+                for (MessageDigest digest : digests) {
+                    digest.update(b, off, num);
+                }
+                if (out != null) {
+                    out.write(b, off, num);
+                }
+                count += num;
+            }
+            return num;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buf = new byte[(int)Math.min(n, 8192)];
+            int num = read(buf, 0, buf.length);
+            return Math.max(num, 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // entry streams are drained, not closed
+        }
+
+        void drain() throws IOException {
+            byte[] buf = new byte[8192];
+            while (read(buf, 0, buf.length) != -1) {}
+        }
+    }
+}
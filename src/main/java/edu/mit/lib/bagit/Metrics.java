@@ -0,0 +1,116 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+/**
+ * Metrics is the instrumentation hook of the library: an application may install
+ * a Metrics implementation to receive timings of the phases of bag building
+ * (reading content, computing checksums, compressing), and may use the same
+ * hook to time its own phases. Until one is installed, timing costs nothing
+ * beyond a field read. Implementations must be thread-safe.
+ *
+ * Usage: long start = Metrics.start(); ...; Metrics.stop("phase", start, bytes);
+ *
+ * @author richardrodgers
+ */
+
+public abstract class Metrics {
+
+    // phases timed by the library
+    public static final String READ = "read";
+    public static final String DIGEST = "digest";
+    public static final String WRITE = "write";
+    public static final String COMPRESS = "compress";
+    public static final String METADATA = "metadata";
+
+    private static volatile Metrics installed;
+
+    /**
+     * Installs passed metrics as the recipient of all timings and counts,
+     * replacing any prior one.
+     *
+     * @param metrics the metrics to install, or null to disable
+     */
+    public static void install(Metrics metrics) {
+        installed = metrics;
+    }
+
+    /**
+     * Returns whether metrics are installed, so phases should be timed.
+     *
+     * @return enabled true if metrics installed
+     */
+    public static boolean enabled() {
+        return installed != null;
+    }
+
+    /**
+     * Returns the start time of a phase to be timed.
+     *
+     * @return start the start time, or 0 if no metrics installed
+     */
+    public static long start() {
+        return (installed != null) ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the end of a phase begun at passed time.
+     *
+     * @param phase the phase name
+     * @param start the start time returned by start()
+     * @param bytes the number of bytes processed in the phase, or 0 if not applicable
+     */
+    public static void stop(String phase, long start, long bytes) {
+        if (start != 0L) {
+            record(phase, System.nanoTime() - start, bytes);
+        }
+    }
+
+    /**
+     * Records a phase timed by the caller - as when time is accumulated
+     * over many short intervals.
+     *
+     * @param phase the phase name
+     * @param nanos the elapsed time in nanoseconds
+     * @param bytes the number of bytes processed in the phase, or 0 if not applicable
+     */
+    public static void record(String phase, long nanos, long bytes) {
+        Metrics metrics = installed;
+        if (metrics != null) {
+            metrics.time(phase, nanos, bytes);
+        }
+    }
+
+    /**
+     * Adds to the named count.
+     *
+     * @param name the count name
+     * @param delta the amount to add
+     */
+    public static void count(String name, long delta) {
+        Metrics metrics = installed;
+        if (metrics != null) {
+            metrics.add(name, delta);
+        }
+    }
+
+    /**
+     * Records one timing of a phase.
+     *
+     * @param phase the phase name
+     * @param nanos the elapsed time in nanoseconds
+     * @param bytes the number of bytes processed, or 0 if not applicable
+     */
+    protected abstract void time(String phase, long nanos, long bytes);
+
+    /**
+     * Adds to a count.
+     *
+     * @param name the count name
+     * @param delta the amount to add
+     */
+    protected abstract void add(String name, long delta);
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ParallelDeflater writes a sequence of raw deflate streams, interleaved with
+ * uncompressed framing (archive headers and the like), to an output stream.
+ * In the manner of pigz, stream data is cut into fixed-size blocks which are
+ * compressed independently on the threads of an executor - each block primed
+ * with the tail of its predecessor as dictionary, and ended with a sync flush
+ * so that the compressed blocks concatenate into a single valid deflate stream.
+ * Output is written strictly in order, with a bounded number of blocks in flight.
+ * Without an executor, blocks are compressed on the calling thread.
+ *
+ * Not thread-safe: a ParallelDeflater is filled by a single thread.
+ *
+ * @author richardrodgers
+ */
+
+class ParallelDeflater {
+
+    // uncompressed size of a compression block
+    static final int BLOCK_SIZE = 128 * 1024;
+    // deflate window - the dictionary carried between blocks
+    static final int DICT_SIZE = 32 * 1024;
+    // maximum number of blocks awaiting output
+    static final int WINDOW = 32;
+
+    /**
+     * A piece of output, rendered when it is due to be written.
+     */
+    interface Chunk {
+        /**
+         * Returns the bytes of this chunk.
+         *
+         * @param offset the output position at which the chunk will be written
+         * @return bytes the chunk bytes
+         */
+        byte[] bytes(long offset) throws IOException;
+    }
+
+    /**
+     * A single deflate (or uncompressed) stream. Sizes and CRC are complete
+     * once the stream has been ended, and all its blocks written.
+     */
+    static class Stream {
+        long size;
+        long csize;
+        long crc;
+    }
+
+    private final OutputStream out;
+    private final Deque<Chunk> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private ExecutorService pool;
+    // number of bytes written to output
+    private long written = 0L;
+    // state of current stream
+    private Stream current;
+    private int level;
+    private boolean deflate;
+    private byte[] block;
+    private int fill;
+    private byte[] dict;
+
+    ParallelDeflater(OutputStream out, ExecutorService pool) {
+        this.out = out;
+        this.pool = pool;
+    }
+
+    void executor(ExecutorService pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Queues an uncompressed chunk for output, after all data written so far.
+     *
+     * @param chunk the chunk
+     */
+    void put(Chunk chunk) throws IOException {
+        if (current != null) {
+            throw new IllegalStateException("Cannot write chunk within a stream");
+        }
+        pending.add(chunk);
+        drain(WINDOW);
+    }
+
+    /**
+     * Begins a new stream.
+     *
+     * @param level the deflate level of the stream
+     * @param deflate if false, the stream is written uncompressed
+     * @return stream the new stream
+     */
+    Stream begin(int level, boolean deflate) {
+        if (current != null) {
+            throw new IllegalStateException("Stream already open");
+        }
+        this.level = level;
+        this.deflate = deflate;
+        current = new Stream();
+        crc.reset();
+        block = new byte[BLOCK_SIZE];
+        fill = 0;
+        dict = null;
+        return current;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int num = Math.min(len, block.length - fill);
+            System.arraycopy(b, off, block, fill, num);
+            crc.update(b, off, num);
+            current.size += num;
+            fill += num;
+            off += num;
+            len -= num;
+            if (fill == block.length) {
+                submit(false);
+            }
+        }
+    }
+
+    /**
+     * Ends the current stream.
+     *
+     * @return stream the ended stream
+     */
+    Stream end() throws IOException {
+        submit(true);
+        Stream stream = current;
+        stream.crc = crc.getValue();
+        current = null;
+        block = null;
+        dict = null;
+        return stream;
+    }
+
+    /**
+     * Writes all pending output.
+     */
+    void flush() throws IOException {
+        drain(0);
+        out.flush();
+    }
+
+    /**
+     * Writes all pending output, and closes the underlying stream.
+     */
+    void close() throws IOException {
+        try {
+            drain(0);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        final byte[] data = block;
+        final int len = fill;
+        final Stream stream = current;
+        if (! deflate) {
+            pending.add(new DataChunk(stream, (len == data.length) ? data : Arrays.copyOf(data, len)));
+        } else {
+            BlockJob job = new BlockJob(data, len, dict, level, last);
+            if (pool != null) {
+                pending.add(new BlockChunk(stream, pool.submit(job), null));
+            } else {
+                pending.add(new BlockChunk(stream, null, job.call()));
+            }
+        }
+        // blocks (bar the last) are full, so always hold a complete dictionary
+        dict = data;
+        if (! last) {
+            block = new byte[BLOCK_SIZE];
+            fill = 0;
+        }
+        drain(WINDOW);
+    }
+
+    private void drain(int max) throws IOException {
+        while (pending.size() > max) {
+            byte[] bytes = pending.poll().bytes(written);
+            out.write(bytes);
+            written += bytes.length;
+        }
+    }
+
+    // uncompressed stream data
+    private static class DataChunk implements Chunk {
+
+        private final Stream stream;
+        private final byte[] data;
+
+        DataChunk(Stream stream, byte[] data) {
+            this.stream = stream;
+            this.data = data;
+        }
+
+        @Override
+        public byte[] bytes(long offset) {
+            stream.csize += data.length;
+            return data;
+        }
+    }
+
+    // compressed stream data - possibly still being compressed
+    private static class BlockChunk implements Chunk {
+
+        private final Stream stream;
+        private final Future<byte[]> future;
+        private final byte[] data;
+
+        BlockChunk(Stream stream, Future<byte[]> future, byte[] data) {
+            this.stream = stream;
+            this.future = future;
+            this.data = data;
+        }
+
+        @Override
+        public byte[] bytes(long offset) throws IOException {
+            byte[] bytes = data;
+            if (future != null) {
+                try {
+                    bytes = future.get();
+                } catch (InterruptedException intE) {
+                    throw new InterruptedIOException("Compression interrupted");
+                } catch (ExecutionException exE) {
+                    throw new IOException(exE.getCause().getMessage(), exE.getCause());
+                }
+            }
+            stream.csize += bytes.length;
+            return bytes;
+        }
+    }
+
+    // compresses one block, primed with the preceding block as dictionary
+    private static class BlockJob implements Callable<byte[]> {
+
+        private final byte[] data;
+        private final int len;
+        private final byte[] dict;
+        private final int level;
+        private final boolean last;
+
+        BlockJob(byte[] data, int len, byte[] dict, int level, boolean last) {
+            this.data = data;
+            this.len = len;
+            this.dict = dict;
+            this.level = level;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() {
+            long start = Metrics.start();
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dict != null) {
+                    deflater.setDictionary(dict, dict.length - DICT_SIZE, DICT_SIZE);
+                }
+                deflater.setInput(data, 0, len);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(len / 2 + 64);
+                byte[] buf = new byte[16 * 1024];
+                int num = 0;
+                if (last) {
+                    deflater.finish();
+                    while (! deflater.finished()) {
+                        num = deflater.deflate(buf);
+                        bytes.write(buf, 0, num);
+                    }
+                } else {
+                    // sync flush ends on a byte boundary without ending the stream
+                    do {
+                        num = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                        bytes.write(buf, 0, num);
+                    } while (num == buf.length);
+                }
+                return bytes.toByteArray();
+            } finally {
+                deflater.end();
+                Metrics.stop(Metrics.COMPRESS, start, len);
+            }
+        }
+    }
+}
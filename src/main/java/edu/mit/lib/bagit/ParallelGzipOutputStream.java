@@ -0,0 +1,81 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * ParallelGzipOutputStream writes a gzip stream whose data is compressed
+ * in blocks on the threads of an executor, in the manner of pigz. Output is
+ * a standard single-member gzip stream, readable by any gzip decompressor.
+ * Without an executor, compression occurs on the writing thread.
+ *
+ * @author richardrodgers
+ */
+
+public class ParallelGzipOutputStream extends OutputStream {
+
+    // magic, deflate method, no flags, no mtime, no extra flags, unknown OS
+    private static final byte[] HEADER = {
+        (byte)0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff
+    };
+
+    private final ParallelDeflater deflater;
+    private final byte[] single = new byte[1];
+    private boolean closed;
+
+    /**
+     * Returns a new stream compressing at the passed level.
+     *
+     * @param out the underlying output stream
+     * @param pool the executor to compress on - if null, compress on writing thread
+     * @param level the deflate level
+     */
+    public ParallelGzipOutputStream(OutputStream out, ExecutorService pool, int level) throws IOException {
+        deflater = new ParallelDeflater(out, pool);
+        deflater.put(new ParallelDeflater.Chunk() {
+            @Override
+            public byte[] bytes(long offset) {
+                return HEADER;
+            }
+        });
+        deflater.begin(level, true);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte)b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        deflater.write(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        final ParallelDeflater.Stream stream = deflater.end();
+        deflater.put(new ParallelDeflater.Chunk() {
+            @Override
+            public byte[] bytes(long offset) {
+                ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putInt((int)stream.crc);
+                buf.putInt((int)stream.size);
+                return buf.array();
+            }
+        });
+        deflater.close();
+    }
+}
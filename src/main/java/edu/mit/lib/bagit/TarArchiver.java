@@ -0,0 +1,140 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * TarArchiver writes a POSIX (ustar) tar archive of regular files. Names too
+ * long for the ustar name and prefix fields are carried in GNU long name
+ * entries, and sizes too large for octal fields are written in GNU base-256
+ * form. As for zip packages, entry times are fixed (at the epoch).
+ *
+ * @author richardrodgers
+ */
+
+class TarArchiver implements AutoCloseable {
+
+    private static final int RECORD = 512;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+    private static final String LONG_NAME = "././@LongLink";
+
+    private final OutputStream out;
+    private long remaining = -1L;
+    private long entrySize;
+
+    TarArchiver(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Begins an entry of the passed size.
+     *
+     * @param name the entry name
+     * @param size the size of the entry contents
+     */
+    void putEntry(String name, long size) throws IOException {
+        if (remaining >= 0L) {
+            throw new IllegalStateException("Entry already open");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] prefix = new byte[0];
+        if (nameBytes.length > 100) {
+            // split into ustar prefix and name at a directory boundary, if possible
+            int split = name.lastIndexOf('/', 155);
+            byte[] pfx = (split > 0) ? name.substring(0, split).getBytes(StandardCharsets.UTF_8) : null;
+            byte[] nm = (split > 0) ? name.substring(split + 1).getBytes(StandardCharsets.UTF_8) : null;
+            if (pfx != null && pfx.length <= 155 && nm.length <= 100 && nm.length > 0) {
+                prefix = pfx;
+                nameBytes = nm;
+            } else {
+                // GNU long name entry, then truncated name in entry itself
+                byte[] longName = Arrays.copyOf(nameBytes, nameBytes.length + 1);
+                out.write(header(LONG_NAME.getBytes(StandardCharsets.UTF_8), new byte[0], longName.length, 'L'));
+                out.write(longName);
+                pad(longName.length);
+                nameBytes = Arrays.copyOf(nameBytes, 100);
+            }
+        }
+        out.write(header(nameBytes, prefix, size, '0'));
+        remaining = size;
+        entrySize = size;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len > remaining) {
+            throw new IOException("Entry contents exceed declared size");
+        }
+        out.write(b, off, len);
+        remaining -= len;
+    }
+
+    void closeEntry() throws IOException {
+        if (remaining != 0L) {
+            throw new IOException("Entry contents short of declared size");
+        }
+        pad(entrySize);
+        remaining = -1L;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // end of archive is marked by two empty records
+        out.write(new byte[2 * RECORD]);
+        out.close();
+    }
+
+    private void pad(long size) throws IOException {
+        int rem = (int)(size % RECORD);
+        if (rem > 0) {
+            out.write(new byte[RECORD - rem]);
+        }
+    }
+
+    private static byte[] header(byte[] name, byte[] prefix, long size, char type) {
+        byte[] hdr = new byte[RECORD];
+        System.arraycopy(name, 0, hdr, 0, Math.min(name.length, 100));
+        octal(hdr, 100, 8, 0644L);
+        octal(hdr, 108, 8, 0L);
+        octal(hdr, 116, 8, 0L);
+        if (size > MAX_OCTAL_SIZE) {
+            // GNU base-256: high bit of leading byte set, big-endian value
+            hdr[124] = (byte)0x80;
+            for (int i = 0; i < 8; i++) {
+                hdr[135 - i] = (byte)(size >>> (8 * i));
+            }
+        } else {
+            octal(hdr, 124, 12, size);
+        }
+        octal(hdr, 136, 12, 0L);
+        hdr[156] = (byte)type;
+        System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, hdr, 257, 8);
+        System.arraycopy(prefix, 0, hdr, 345, prefix.length);
+        // checksum computed with checksum field as spaces
+        Arrays.fill(hdr, 148, 156, (byte)' ');
+        long sum = 0L;
+        for (byte b : hdr) {
+            sum += b & 0xff;
+        }
+        octal(hdr, 148, 7, sum);
+        hdr[155] = (byte)' ';
+        return hdr;
+    }
+
+    // zero-padded octal value, NUL-terminated, filling field
+    private static void octal(byte[] hdr, int off, int len, long value) {
+        String digits = Long.toOctalString(value);
+        int width = len - 1;
+        for (int i = 0; i < width; i++) {
+            int idx = digits.length() - width + i;
+            hdr[off + i] = (byte)((idx >= 0) ? digits.charAt(idx) : '0');
+        }
+        hdr[off + width] = 0;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TarReader reads the regular file entries of a tar archive sequentially:
+ * ustar entries, with GNU long name and base-256 size extensions, and
+ * POSIX extended (pax) path and size headers. Other entry types, such as
+ * directories and links, are skipped.
+ *
+ * @author richardrodgers
+ */
+
+class TarReader {
+
+    private static final int RECORD = 512;
+
+    private final InputStream in;
+    private final byte[] header = new byte[RECORD];
+    // bytes unread in current entry, and padding following it
+    private long remaining = 0L;
+    private int padding = 0;
+
+    TarReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Advances to the next regular file entry, skipping any unread
+     * contents of the current one.
+     *
+     * @return name the entry name, or null if no more entries
+     */
+    String next() throws IOException {
+        String longName = null;
+        long paxSize = -1L;
+        while (true) {
+            skip(remaining + padding);
+            if (! readHeader()) {
+                return null;
+            }
+            long size = size();
+            char type = (char)header[156];
+            remaining = size;
+            padding = (int)((RECORD - size % RECORD) % RECORD);
+            if (type == 'L') {
+                longName = cstring(readData(size), 0, (int)size);
+            } else if (type == 'x') {
+                byte[] pax = readData(size);
+                String[] vals = pax(pax);
+                if (vals[0] != null) longName = vals[0];
+                if (vals[1] != null) paxSize = Long.parseLong(vals[1]);
+            } else if (type == '0' || type == 0) {
+                if (paxSize >= 0L) {
+                    remaining = paxSize;
+                    padding = (int)((RECORD - paxSize % RECORD) % RECORD);
+                }
+                if (longName != null) {
+                    return longName;
+                }
+                String name = cstring(header, 0, 100);
+                String prefix = isUstar() ? cstring(header, 345, 155) : "";
+                return (prefix.length() > 0) ? prefix + "/" + name : name;
+            } else {
+                // not a regular file: skip, forgetting any extended name or size
+                longName = null;
+                paxSize = -1L;
+            }
+        }
+    }
+
+    /**
+     * Returns a stream over the contents of the current entry.
+     *
+     * @return in the entry contents
+     */
+    InputStream entry() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0L) {
+                    return -1;
+                }
+                int num = in.read(b, off, (int)Math.min(len, remaining));
+                if (num == -1) {
+                    throw new EOFException("Truncated tar entry");
+                }
+                remaining -= num;
+                return num;
+            }
+        };
+    }
+
+    private boolean readHeader() throws IOException {
+        int off = 0;
+        while (off < RECORD) {
+            int num = in.read(header, off, RECORD - off);
+            if (num == -1) {
+                if (off == 0) return false;
+                throw new EOFException("Truncated tar header");
+            }
+            off += num;
+        }
+        // end of archive marked by empty record
+        for (byte b : header) {
+            if (b != 0) return true;
+        }
+        return false;
+    }
+
+    private byte[] readData(long size) throws IOException {
+        byte[] data = new byte[(int)size];
+        int off = 0;
+        while (off < data.length) {
+            int num = in.read(data, off, data.length - off);
+            if (num == -1) {
+                throw new EOFException("Truncated tar entry");
+            }
+            off += num;
+        }
+        remaining = 0L;
+        return data;
+    }
+
+    private void skip(long count) throws IOException {
+        byte[] buf = new byte[8192];
+        while (count > 0L) {
+            int num = in.read(buf, 0, (int)Math.min(buf.length, count));
+            if (num == -1) {
+                throw new EOFException("Truncated tar archive");
+            }
+            count -= num;
+        }
+        remaining = 0L;
+        padding = 0;
+    }
+
+    private long size() {
+        if ((header[124] & 0x80) != 0) {
+            // GNU base-256
+            long size = 0L;
+            for (int i = 128; i < 136; i++) {
+                size = (size << 8) | (header[i] & 0xff);
+            }
+            return size;
+        }
+        String octal = cstring(header, 124, 12).trim();
+        return (octal.length() > 0) ? Long.parseLong(octal, 8) : 0L;
+    }
+
+    private boolean isUstar() {
+        return cstring(header, 257, 5).equals("ustar");
+    }
+
+    // path and size values of a pax extended header - records are 'len key=value\n'
+    private static String[] pax(byte[] data) {
+        String[] vals = new String[2];
+        int off = 0;
+        while (off < data.length) {
+            int space = off;
+            while (space < data.length && data[space] != ' ') space++;
+            if (space >= data.length) break;
+            int len = Integer.parseInt(new String(data, off, space - off, StandardCharsets.US_ASCII));
+            if (len <= 0) break;
+            String record = new String(data, space + 1, off + len - space - 2, StandardCharsets.UTF_8);
+            int eq = record.indexOf('=');
+            if (eq > 0) {
+                String key = record.substring(0, eq);
+                if ("path".equals(key)) vals[0] = record.substring(eq + 1);
+                else if ("size".equals(key)) vals[1] = record.substring(eq + 1);
+            }
+            off += len;
+        }
+        return vals;
+    }
+
+    private static String cstring(byte[] b, int off, int len) {
+        int end = off;
+        while (end < off + len && b[end] != 0) end++;
+        return new String(b, off, end - off, StandardCharsets.UTF_8);
+    }
+}
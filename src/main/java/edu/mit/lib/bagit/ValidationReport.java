@@ -0,0 +1,190 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ValidationReport holds the outcome of validating a bag: rather than
+ * stopping at the first problem, all missing, extra and corrupt files
+ * are reported, along with the volume of content checked and time taken -
+ * overall, and for each file checked. Paths are bag-relative.
+ *
+ * @author richardrodgers
+ */
+
+public class ValidationReport {
+
+    // files listed in a manifest but absent from the bag
+    private final List<String> missing = new ArrayList<>();
+    // files present in the bag but absent from manifests
+    private final List<String> extra = new ArrayList<>();
+    // files whose checksums do not match manifest values
+    private final List<String> corrupt = new ArrayList<>();
+    // files whose checksums could not be computed for any manifest algorithm
+    private final List<String> unverified = new ArrayList<>();
+    // bag holey (fetch.txt) or lacking mandatory files?
+    private boolean incomplete;
+    // time taken to check each file, in nanoseconds
+    private final Map<String, Long> fileTimes = new HashMap<>();
+    private int filesChecked;
+    private long bytesChecked;
+    private long elapsed;
+
+    ValidationReport() {}
+
+    /**
+     * Returns whether the bag is valid, i.e. complete and with all
+     * checksums matching manifest values.
+     *
+     * @return valid true if bag validates
+     */
+    public boolean isValid() {
+        return ! incomplete && missing.isEmpty() && extra.isEmpty() && corrupt.isEmpty() && unverified.isEmpty();
+    }
+
+    /**
+     * Returns files listed in manifests but not present in the bag.
+     *
+     * @return missing the bag-relative paths of missing files
+     */
+    public List<String> missing() {
+        return Collections.unmodifiableList(missing);
+    }
+
+    /**
+     * Returns files present in the bag but not listed in manifests.
+     *
+     * @return extra the bag-relative paths of extra files
+     */
+    public List<String> extra() {
+        return Collections.unmodifiableList(extra);
+    }
+
+    /**
+     * Returns files whose checksums do not match manifest values.
+     *
+     * @return corrupt the bag-relative paths of corrupt files
+     */
+    public List<String> corrupt() {
+        return Collections.unmodifiableList(corrupt);
+    }
+
+    /**
+     * Returns files whose checksums could not be computed for any of their
+     * manifest algorithms - as when a streamed bag's manifests follow its
+     * payload, and use algorithms the loader did not anticipate.
+     *
+     * @return unverified the bag-relative paths of unverified files
+     */
+    public List<String> unverified() {
+        return Collections.unmodifiableList(unverified);
+    }
+
+    /**
+     * Returns the number of files whose checksums were computed.
+     *
+     * @return count the number of files checked
+     */
+    public int filesChecked() {
+        return filesChecked;
+    }
+
+    /**
+     * Returns the number of bytes whose checksums were computed.
+     *
+     * @return count the number of bytes checked
+     */
+    public long bytesChecked() {
+        return bytesChecked;
+    }
+
+    /**
+     * Returns the time taken by validation.
+     *
+     * @return elapsed the elapsed time in milliseconds
+     */
+    public long elapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Returns the time taken to check passed file. Files checked concurrently
+     * overlap, so times may sum to more than the elapsed time of validation.
+     *
+     * @param path the bag-relative path of the file
+     * @return nanos the time taken in nanoseconds, or -1 if file not checked
+     */
+    public long fileTime(String path) {
+        Long nanos = fileTimes.get(path);
+        return (nanos != null) ? nanos : -1L;
+    }
+
+    /**
+     * Returns the files which took longest to check, slowest first.
+     *
+     * @param count the maximum number of files to return
+     * @return slowest the bag-relative paths of the slowest files
+     */
+    public List<String> slowest(int count) {
+        List<String> slowest = new ArrayList<>(fileTimes.keySet());
+        Collections.sort(slowest, new Comparator<String>() {
+            @Override
+            public int compare(String path1, String path2) {
+                return Long.compare(fileTimes.get(path2), fileTimes.get(path1));
+            }
+        });
+        return slowest.subList(0, Math.min(count, slowest.size()));
+    }
+
+    @Override
+    public String toString() {
+        List<String> slowest = slowest(1);
+        return (isValid() ? "valid" : "invalid") + (incomplete ? " (incomplete)" : "") +
+               ": " + missing.size() + " missing, " + extra.size() + " extra, " + corrupt.size() +
+               " corrupt" + (unverified.isEmpty() ? "" : ", " + unverified.size() + " unverified") +
+               "; checked " + filesChecked + " files, " + bytesChecked + " bytes in " + elapsed + " ms" +
+               (slowest.isEmpty() ? "" : "; slowest " + slowest.get(0) + " in " + fileTime(slowest.get(0)) / 1000000L + " ms");
+    }
+
+    void incomplete() {
+        incomplete = true;
+    }
+
+    void missing(String path) {
+        missing.add(path);
+    }
+
+    void extra(String path) {
+        extra.add(path);
+    }
+
+    void unverified(String path) {
+        unverified.add(path);
+    }
+
+    void checked(String path, long bytes, long nanos, boolean matched) {
+        filesChecked++;
+        bytesChecked += bytes;
+        fileTimes.put(path, nanos);
+        if (! matched) {
+            corrupt.add(path);
+        }
+    }
+
+    void finish(long elapsed) {
+        Collections.sort(missing);
+        Collections.sort(extra);
+        Collections.sort(corrupt);
+        Collections.sort(unverified);
+        this.elapsed = elapsed;
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * ZipArchiver writes a zip archive whose entries are compressed by a
+ * ParallelDeflater - so that large entries, and successive small ones,
+ * are compressed concurrently. Deflated entries are streamed, their sizes
+ * and CRC following their data in a data descriptor; stored entries must
+ * declare size and CRC up front. Zip64 extensions are used when sizes,
+ * offsets or entry counts require them. Entry times are fixed at the
+ * earliest DOS time, as bag packages carry no meaningful file times.
+ *
+ * @author richardrodgers
+ */
+
+class ZipArchiver implements AutoCloseable {
+
+    private static final int LOCAL_SIG = 0x04034b50;
+    private static final int DESCRIPTOR_SIG = 0x08074b50;
+    private static final int CENTRAL_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_COUNT_MAGIC = 0xFFFF;
+    // general purpose flags: names in UTF-8, sizes in data descriptor
+    private static final int FLAG_UTF8 = 0x800;
+    private static final int FLAG_DESCRIPTOR = 0x8;
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int VSN_DEFAULT = 20;
+    private static final int VSN_ZIP64 = 45;
+    // DOS date of 1980-01-01, time 00:00
+    private static final int DOS_DATE = 0x21;
+
+    private final ParallelDeflater deflater;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private Entry current;
+    private boolean closed;
+
+    // an archive entry - sizes and offset known once written
+    private static class Entry {
+        final byte[] name;
+        final int method;
+        final long size;
+        final long crc;
+        ParallelDeflater.Stream stream;
+        long offset;
+
+        Entry(byte[] name, int method, long size, long crc) {
+            this.name = name;
+            this.method = method;
+            this.size = size;
+            this.crc = crc;
+        }
+
+        int flags() {
+            return (method == DEFLATED) ? FLAG_UTF8 | FLAG_DESCRIPTOR : FLAG_UTF8;
+        }
+    }
+
+    ZipArchiver(OutputStream out, ExecutorService pool) {
+        deflater = new ParallelDeflater(out, pool);
+    }
+
+    void executor(ExecutorService pool) {
+        deflater.executor(pool);
+    }
+
+    /**
+     * Begins a deflated entry, at the passed level.
+     *
+     * @param name the entry name
+     * @param level the deflate level
+     */
+    void putEntry(String name, int level) throws IOException {
+        open(new Entry(name(name), DEFLATED, -1L, 0L));
+        current.stream = deflater.begin(level, true);
+    }
+
+    /**
+     * Begins a stored (uncompressed) entry, whose contents must have the
+     * declared size and CRC.
+     *
+     * @param name the entry name
+     * @param size the size of the entry contents
+     * @param crc the CRC-32 of the entry contents
+     */
+    void putStoredEntry(String name, long size, long crc) throws IOException {
+        open(new Entry(name(name), STORED, size, crc));
+        current.stream = deflater.begin(0, false);
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("No open entry");
+        }
+        deflater.write(b, off, len);
+    }
+
+    void closeEntry() throws IOException {
+        if (current == null) {
+            throw new IllegalStateException("No open entry");
+        }
+        final Entry entry = current;
+        deflater.end();
+        current = null;
+        if (entry.method == STORED) {
+            if (entry.stream.size != entry.size || entry.stream.crc != entry.crc) {
+                throw new IOException("Stored entry contents differ from declared size or CRC");
+            }
+        } else {
+            deflater.put(new ParallelDeflater.Chunk() {
+                @Override
+                public byte[] bytes(long offset) {
+                    return descriptor(entry);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null) {
+            closeEntry();
+        }
+        deflater.put(new ParallelDeflater.Chunk() {
+            @Override
+            public byte[] bytes(long offset) {
+                return centralDirectory(offset);
+            }
+        });
+        deflater.close();
+    }
+
+    private byte[] name(String name) {
+        if (! names.add(name)) {
+            throw new IllegalStateException("Duplicate entry: " + name);
+        }
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void open(final Entry entry) throws IOException {
+        if (current != null) {
+            throw new IllegalStateException("Entry already open");
+        }
+        entries.add(entry);
+        deflater.put(new ParallelDeflater.Chunk() {
+            @Override
+            public byte[] bytes(long offset) {
+                entry.offset = offset;
+                return localHeader(entry);
+            }
+        });
+        current = entry;
+    }
+
+    private static byte[] localHeader(Entry entry) {
+        boolean zip64 = entry.method == STORED && entry.size >= ZIP64_MAGIC;
+        ByteBuffer buf = buffer(30 + entry.name.length + (zip64 ? 20 : 0));
+        buf.putInt(LOCAL_SIG);
+        buf.putShort((short)(zip64 ? VSN_ZIP64 : VSN_DEFAULT));
+        buf.putShort((short)entry.flags());
+        buf.putShort((short)entry.method);
+        buf.putShort((short)0);
+        buf.putShort((short)DOS_DATE);
+        if (entry.method == STORED) {
+            buf.putInt((int)entry.crc);
+            buf.putInt((int)(zip64 ? ZIP64_MAGIC : entry.size));
+            buf.putInt((int)(zip64 ? ZIP64_MAGIC : entry.size));
+        } else {
+            // sizes and CRC follow in data descriptor
+            buf.putInt(0);
+            buf.putInt(0);
+            buf.putInt(0);
+        }
+        buf.putShort((short)entry.name.length);
+        buf.putShort((short)(zip64 ? 20 : 0));
+        buf.put(entry.name);
+        if (zip64) {
+            buf.putShort((short)0x0001);
+            buf.putShort((short)16);
+            buf.putLong(entry.size);
+            buf.putLong(entry.size);
+        }
+        return buf.array();
+    }
+
+    private static byte[] descriptor(Entry entry) {
+        ParallelDeflater.Stream stream = entry.stream;
+        boolean zip64 = stream.size >= ZIP64_MAGIC || stream.csize >= ZIP64_MAGIC;
+        ByteBuffer buf = buffer(zip64 ? 24 : 16);
+        buf.putInt(DESCRIPTOR_SIG);
+        buf.putInt((int)stream.crc);
+        if (zip64) {
+            buf.putLong(stream.csize);
+            buf.putLong(stream.size);
+        } else {
+            buf.putInt((int)stream.csize);
+            buf.putInt((int)stream.size);
+        }
+        return buf.array();
+    }
+
+    private byte[] centralDirectory(long cdOffset) {
+        int cdSize = 0;
+        for (Entry entry : entries) {
+            cdSize += 46 + entry.name.length + zip64Extra(entry);
+        }
+        boolean zip64 = entries.size() >= ZIP64_COUNT_MAGIC || cdOffset >= ZIP64_MAGIC;
+        ByteBuffer buf = buffer(cdSize + (zip64 ? 56 + 20 : 0) + 22);
+        for (Entry entry : entries) {
+            ParallelDeflater.Stream stream = entry.stream;
+            int extra = zip64Extra(entry);
+            buf.putInt(CENTRAL_SIG);
+            buf.putShort((short)((extra > 0) ? VSN_ZIP64 : VSN_DEFAULT));
+            buf.putShort((short)((extra > 0) ? VSN_ZIP64 : VSN_DEFAULT));
+            buf.putShort((short)entry.flags());
+            buf.putShort((short)entry.method);
+            buf.putShort((short)0);
+            buf.putShort((short)DOS_DATE);
+            buf.putInt((int)stream.crc);
+            buf.putInt((int)Math.min(stream.csize, ZIP64_MAGIC));
+            buf.putInt((int)Math.min(stream.size, ZIP64_MAGIC));
+            buf.putShort((short)entry.name.length);
+            buf.putShort((short)extra);
+            buf.putShort((short)0);
+            buf.putShort((short)0);
+            buf.putShort((short)0);
+            buf.putInt(0);
+            buf.putInt((int)Math.min(entry.offset, ZIP64_MAGIC));
+            buf.put(entry.name);
+            if (extra > 0) {
+                buf.putShort((short)0x0001);
+                buf.putShort((short)(extra - 4));
+                if (stream.size >= ZIP64_MAGIC) buf.putLong(stream.size);
+                if (stream.csize >= ZIP64_MAGIC) buf.putLong(stream.csize);
+                if (entry.offset >= ZIP64_MAGIC) buf.putLong(entry.offset);
+            }
+        }
+        if (zip64) {
+            long recOffset = cdOffset + cdSize;
+            buf.putInt(ZIP64_END_SIG);
+            buf.putLong(44L);
+            buf.putShort((short)VSN_ZIP64);
+            buf.putShort((short)VSN_ZIP64);
+            buf.putInt(0);
+            buf.putInt(0);
+            buf.putLong(entries.size());
+            buf.putLong(entries.size());
+            buf.putLong(cdSize);
+            buf.putLong(cdOffset);
+            buf.putInt(ZIP64_LOCATOR_SIG);
+            buf.putInt(0);
+            buf.putLong(recOffset);
+            buf.putInt(1);
+        }
+        buf.putInt(END_SIG);
+        buf.putShort((short)0);
+        buf.putShort((short)0);
+        buf.putShort((short)Math.min(entries.size(), ZIP64_COUNT_MAGIC));
+        buf.putShort((short)Math.min(entries.size(), ZIP64_COUNT_MAGIC));
+        buf.putInt(cdSize);
+        buf.putInt((int)Math.min(cdOffset, ZIP64_MAGIC));
+        buf.putShort((short)0);
+        return buf.array();
+    }
+
+    // length of zip64 extra field needed in central directory, if any
+    private static int zip64Extra(Entry entry) {
+        int len = 0;
+        if (entry.stream.size >= ZIP64_MAGIC) len += 8;
+        if (entry.stream.csize >= ZIP64_MAGIC) len += 8;
+        if (entry.offset >= ZIP64_MAGIC) len += 8;
+        return (len > 0) ? len + 4 : 0;
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
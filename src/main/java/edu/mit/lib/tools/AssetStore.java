@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dspace.content.Bitstream;
+import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+/**
+ * AssetStore locates the files holding bitstream contents in DSpace's local
+ * assetstores, so they may be packaged directly rather than read through
+ * Bitstream.retrieve(). Follows the layout of DSpace's BitstreamStorageManager:
+ * store 0 is 'assetstore.dir', store N 'assetstore.dir.N', and a file lies
+ * under three levels of directories named for leading pairs of its internal id
+ * (or, if registered, at the store-relative path following the id's '-R' flag).
+ * Bitstreams in other kinds of store (e.g. SRB) are not located. The files of
+ * all an item's bitstreams may be located at once, with a single query.
+ *
+ * @author richardrodgers
+ */
+
+public class AssetStore {
+
+    private static final int DIRECTORY_LEVELS = 3;
+    private static final int DIGITS_PER_LEVEL = 2;
+    private static final String REGISTERED_FLAG = "-R";
+
+    // local store directories, by store number - null if not local
+    private final List<Path> stores = new ArrayList<>();
+
+    public AssetStore() {
+        String dir = ConfigurationManager.getProperty("assetstore.dir");
+        stores.add((dir != null) ? Paths.get(dir) : null);
+        for (int i = 1; (dir = ConfigurationManager.getProperty("assetstore.dir." + i)) != null; i++) {
+            stores.add(Paths.get(dir));
+        }
+    }
+
+    /**
+     * Returns the file holding the contents of passed bitstream, if it is
+     * in a local assetstore and of the size DSpace recorded.
+     *
+     * @param context the DSpace context
+     * @param bs the bitstream
+     * @return file the contents file, or null if not located
+     */
+    public Path locate(Context context, Bitstream bs) throws SQLException {
+        // internal id is not exposed by Bitstream
+        TableRow row = DatabaseManager.find(context, "bitstream", bs.getID());
+        return (row != null) ? file(bs.getStoreNumber(), row.getStringColumn("internal_id"), bs.getSize()) : null;
+    }
+
+    /**
+     * Returns the files holding the contents of all bitstreams of passed item
+     * which are in a local assetstore and of the size DSpace recorded, found
+     * with one query rather than one for each bitstream.
+     *
+     * @param context the DSpace context
+     * @param item the item
+     * @return files map of bitstream id to contents file - bitstreams not located are absent
+     */
+    public Map<Integer, Path> locate(Context context, Item item) throws SQLException {
+        Map<Integer, Path> files = new HashMap<>();
+        TableRowIterator tri = DatabaseManager.query(context,
+                "SELECT bitstream.bitstream_id, bitstream.store_number, bitstream.internal_id, bitstream.size_bytes " +
+                "FROM bitstream, bundle2bitstream, item2bundle WHERE item2bundle.item_id = ? " +
+                "AND bundle2bitstream.bundle_id = item2bundle.bundle_id " +
+                "AND bitstream.bitstream_id = bundle2bitstream.bitstream_id", item.getID());
+        try {
+            while (tri.hasNext()) {
+                TableRow row = tri.next();
+                Path file = file(row.getIntColumn("store_number"), row.getStringColumn("internal_id"),
+                                 row.getLongColumn("size_bytes"));
+                if (file != null) {
+                    files.put(row.getIntColumn("bitstream_id"), file);
+                }
+            }
+        } finally {
+            tri.close();
+        }
+        return files;
+    }
+
+    // file in passed store with passed internal id, if present and of passed size
+    private Path file(int storeNum, String id, long size) {
+        if (storeNum < 0 || storeNum >= stores.size() || stores.get(storeNum) == null || id == null) {
+            return null;
+        }
+        Path file = stores.get(storeNum);
+        if (id.startsWith(REGISTERED_FLAG)) {
+            file = file.resolve(id.substring(REGISTERED_FLAG.length()));
+        } else if (id.length() > DIRECTORY_LEVELS * DIGITS_PER_LEVEL) {
+            for (int i = 0; i < DIRECTORY_LEVELS; i++) {
+                file = file.resolve(id.substring(i * DIGITS_PER_LEVEL, (i + 1) * DIGITS_PER_LEVEL));
+            }
+            file = file.resolve(id);
+        } else {
+            return null;
+        }
+        try {
+            return (Files.isRegularFile(file) && Files.size(file) == size) ? file : null;
+        } catch (IOException ioE) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the checksums DSpace recorded for passed bitstream.
+     *
+     * @param bs the bitstream
+     * @return checksums map of checksum algorithm to checksum - empty if none recorded
+     */
+    public static Map<String, String> checksums(Bitstream bs) {
+        Map<String, String> sums = new HashMap<>();
+        if (bs.getChecksumAlgorithm() != null && bs.getChecksum() != null) {
+            sums.put(bs.getChecksumAlgorithm(), bs.getChecksum());
+        }
+        return sums;
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.core.Context;
+import org.dspace.curate.Utils;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+/**
+ * ContentStore is a content-addressed store of bitstream contents shared
+ * by more than one bitstream in the repository - the same license PDF, or
+ * a dataset attached to several item versions. Shared contents are written
+ * once, keyed by their DSpace-recorded MD5 checksum, and referenced from
+ * packages by URL (in fetch.txt), so that scratch space and copy time scale
+ * with unique content. Checksums in each package algorithm are computed as
+ * contents are stored, and kept in an index alongside, so that reruns reuse
+ * contents already stored. Index lines name the algorithm of each checksum
+ * ('MD5:...'), so a rerun with other algorithms, or in another order, never
+ * mistakes one for another - contents lacking any it needs are stored afresh.
+ *
+ * @author richardrodgers
+ */
+
+public class ContentStore {
+
+    private static final String INDEX_FILE = "content.index";
+    private static final String DSPACE_ALGO = "MD5";
+
+    private final Path storeDir;
+    private final String baseUrl;
+    private final List<String> csAlgs;
+    // checksums of contents shared by more than one bitstream
+    private final Set<String> shared = new HashSet<>();
+    // checksums, by algorithm, of stored contents
+    private final Map<String, Map<String, String>> stored = new ConcurrentHashMap<>();
+    // contents being stored - one lock per content
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+
+    /**
+     * Opens store at passed location, creating it if it does not exist,
+     * and determines which contents are shared.
+     *
+     * @param context the DSpace context
+     * @param storeDir the store directory
+     * @param baseUrl the URL under which stored contents are fetched
+     * @param csAlgs checksum algorithms to record for stored contents
+     */
+    public ContentStore(Context context, Path storeDir, String baseUrl, List<String> csAlgs) throws IOException, SQLException {
+        this.storeDir = storeDir;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.csAlgs = csAlgs;
+        Files.createDirectories(storeDir);
+        // one query finds all shared contents
+        TableRowIterator tri = DatabaseManager.query(context,
+                "SELECT checksum FROM bitstream WHERE deleted = false AND checksum_algorithm = ? " +
+                "GROUP BY checksum HAVING COUNT(*) > 1", DSPACE_ALGO);
+        try {
+            while (tri.hasNext()) {
+                shared.add(tri.next().getStringColumn("checksum").toLowerCase());
+            }
+        } finally {
+            tri.close();
+        }
+        Path index = storeDir.resolve(INDEX_FILE);
+        if (Files.exists(index)) {
+            try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    Map<String, String> sums = new HashMap<>();
+                    for (int i = 1; i < parts.length; i++) {
+                        int split = parts[i].indexOf(":");
+                        if (split > 0) {
+                            sums.put(parts[i].substring(0, split), parts[i].substring(split + 1));
+                        }
+                    }
+                    // ignore any partially written final line, contents since removed, or lacking an algorithm
+                    if (hasAll(sums) && Files.exists(contentFile(parts[0]))) {
+                        stored.put(parts[0], sums);
+                    }
+                }
+            }
+        }
+        writer = Files.newBufferedWriter(index, StandardCharsets.UTF_8,
+                                         StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns whether the contents of passed bitstream are shared with
+     * other bitstreams, and so belong in the store.
+     *
+     * @param bs the bitstream
+     * @return shared true if contents are shared
+     */
+    public boolean isShared(Bitstream bs) {
+        return DSPACE_ALGO.equals(bs.getChecksumAlgorithm()) && bs.getChecksum() != null &&
+               shared.contains(bs.getChecksum().toLowerCase());
+    }
+
+    /**
+     * Returns the URL of the passed bitstream's stored contents.
+     *
+     * @param bs the bitstream
+     * @return url the contents URL
+     */
+    public String url(Bitstream bs) {
+        String key = bs.getChecksum().toLowerCase();
+        return baseUrl + key.substring(0, 2) + "/" + key;
+    }
+
+    /**
+     * Stores the contents of passed bitstream, unless already stored,
+     * and returns their checksums.
+     *
+     * @param bs the bitstream
+     * @return checksums map of checksum algorithm to checksum
+     */
+    public Map<String, String> put(Bitstream bs) throws IOException, SQLException, AuthorizeException {
+        String key = bs.getChecksum().toLowerCase();
+        Map<String, String> sums = stored.get(key);
+        if (sums != null) {
+            return sums;
+        }
+        Object lock = new Object();
+        Object prior = locks.putIfAbsent(key, lock);
+        synchronized ((prior != null) ? prior : lock) {
+            // another worker may have stored it meanwhile
+            sums = stored.get(key);
+            if (sums == null) {
+                sums = write(key, bs.retrieve());
+                stored.put(key, sums);
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * Closes the store.
+     */
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+
+    private Map<String, String> write(String key, InputStream in) throws IOException {
+        List<MessageDigest> digests = new ArrayList<>();
+        try {
+            for (String csAlg : csAlgs) {
+                digests.add(MessageDigest.getInstance(csAlg));
+            }
+            digests.add(MessageDigest.getInstance(DSPACE_ALGO));
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IOException("no algorithm: " + nsaE.getMessage());
+        }
+        Path tmpFile = Files.createTempFile(storeDir, key, ".tmp");
+        try (InputStream cin = in; OutputStream out = Files.newOutputStream(tmpFile)) {
+            byte[] buf = new byte[65536];
+            int num = 0;
+            while ((num = cin.read(buf)) != -1) {
+                out.write(buf, 0, num);
+                for (MessageDigest digest : digests) {
+                    digest.update(buf, 0, num);
+                }
+            }
+        }
+        // contents must be those DSpace recorded
+        if (! key.equals(Utils.toHex(digests.get(csAlgs.size()).digest()))) {
+            Files.delete(tmpFile);
+            throw new IOException("Bitstream contents do not match recorded checksum: " + key);
+        }
+        Files.createDirectories(contentFile(key).getParent());
+        Files.move(tmpFile, contentFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Map<String, String> sums = new HashMap<>();
+        StringBuilder line = new StringBuilder(key);
+        for (int i = 0; i < csAlgs.size(); i++) {
+            String sum = Utils.toHex(digests.get(i).digest());
+            sums.put(csAlgs.get(i), sum);
+            line.append(" ").append(csAlgs.get(i)).append(":").append(sum);
+        }
+        synchronized (writer) {
+            writer.write(line.toString());
+            writer.newLine();
+            writer.flush();
+        }
+        return sums;
+    }
+
+    // whether passed checksums include a complete one for each store algorithm
+    private boolean hasAll(Map<String, String> sums) throws IOException {
+        for (String csAlg : csAlgs) {
+            String sum = sums.get(csAlg);
+            try {
+                if (sum == null || sum.length() != 2 * MessageDigest.getInstance(csAlg).getDigestLength()) {
+                    return false;
+                }
+            } catch (NoSuchAlgorithmException nsaE) {
+                throw new IOException("no algorithm: " + csAlg);
+            }
+        }
+        return true;
+    }
+
+    // contents are spread over subdirectories named for leading checksum digits
+    private Path contentFile(String key) {
+        return storeDir.resolve(key.substring(0, 2)).resolve(key);
+    }
+}
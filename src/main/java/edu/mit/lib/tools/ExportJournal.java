@@ -0,0 +1,150 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dspace.curate.Utils;
+
+/**
+ * ExportJournal is a durable, append-only record of completed export packages,
+ * kept in the scratch directory. Each line records a handle, and the size and
+ * checksum of its package file. A rerun of an export consults the journal
+ * to skip packages already built and intact, so that restart cost depends
+ * on the work remaining. Packages without a journal record (e.g. those
+ * being written when an export died) are simply rebuilt. The journal's first
+ * line records the export options that shape packages (checksum algorithms,
+ * compression, etc); a journal written under other options is discarded, so
+ * that its packages are rebuilt rather than kept stale.
+ *
+ * @author richardrodgers
+ */
+
+public class ExportJournal {
+
+    // algorithm of recorded package checksums
+    public static final String CS_ALGO = "MD5";
+
+    private static final String OPTIONS = "# options ";
+
+    private final Map<String, Entry> done = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+
+    /**
+     * Opens journal at passed location for exports under passed options,
+     * creating it if it does not exist, and starting it afresh if it was
+     * written under other options.
+     *
+     * @param journalFile the journal file path
+     * @param options the export options which shape packages, in a fixed form
+     */
+    public ExportJournal(Path journalFile, String options) throws IOException {
+        boolean current = false;
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String line = reader.readLine();
+                current = (OPTIONS + options).equals(line);
+                if (! current && line != null) {
+                    System.out.println("Export options have changed - rebuilding all packages");
+                }
+                while (current && (line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    // ignore any partially written final line
+                    if (parts.length == 3) {
+                        done.put(parts[0], new Entry(Long.parseLong(parts[1]), parts[2]));
+                    }
+                }
+            }
+        }
+        if (current) {
+            writer = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8,
+                                             StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } else {
+            writer = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8);
+            writer.write(OPTIONS + options);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Returns whether the package for passed handle was completed in an
+     * earlier run, and is still present and intact. Packages are checked by
+     * size, and also by checksum if verify is requested.
+     *
+     * @param handle the handle of the packaged object
+     * @param pkg the package file
+     * @param verify if true, recompute the package checksum
+     * @return done true if package need not be rebuilt
+     */
+    public boolean isDone(String handle, Path pkg, boolean verify) throws IOException {
+        Entry entry = done.get(handle);
+        if (entry == null || Files.notExists(pkg) || Files.size(pkg) != entry.size) {
+            return false;
+        }
+        return ! verify || entry.checksum.equals(checksum(pkg));
+    }
+
+    /**
+     * Records the completed package for passed handle.
+     *
+     * @param handle the handle of the packaged object
+     * @param pkg the package file
+     * @param checksum the package checksum (CS_ALGO), computed as it was written
+     */
+    public void record(String handle, Path pkg, String checksum) throws IOException {
+        Entry entry = new Entry(Files.size(pkg), checksum);
+        synchronized (writer) {
+            writer.write(handle + " " + entry.size + " " + entry.checksum);
+            writer.newLine();
+            writer.flush();
+        }
+        done.put(handle, entry);
+    }
+
+    /**
+     * Closes the journal.
+     */
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+
+    private String checksum(Path pkg) throws IOException {
+        try (InputStream in = Files.newInputStream(pkg)) {
+            MessageDigest md = MessageDigest.getInstance(CS_ALGO);
+            byte[] buf = new byte[65536];
+            int num = 0;
+            while ((num = in.read(buf)) != -1) {
+                md.update(buf, 0, num);
+            }
+            return Utils.toHex(md.digest());
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IOException("no algorithm: " + CS_ALGO);
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final String checksum;
+
+        Entry(long size, String checksum) {
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Stack;
+
+import org.dspace.content.Collection;
+import org.dspace.content.Community;
+import org.dspace.content.Item;
+import org.dspace.content.ItemIterator;
+import org.dspace.core.Constants;
+
+/**
+ * ExportManifest is the map of the content subtree being exported: an ordered
+ * list of entries, each giving the handle, content type and tree level of an
+ * object, such that every object follows its parent. It is serialized to the
+ * scratch directory as export.map, one entry per line: 'level ctype handle'.
+ * Entries are held compactly - levels and types in byte arrays, and handles
+ * packed end-to-end in a single byte buffer, indexed by offset - so that
+ * manifests of millions of objects occupy under 30 bytes per entry, and are
+ * read and written without per-entry objects.
+ *
+ * A manifest may also be consumed while it is built: once opened, each entry
+ * added is appended to the manifest file, and is at once available to threads
+ * awaiting it, so that export of the first objects need not wait for the walk
+ * of the whole subtree. Safe for one building thread and any number of consumers.
+ *
+ * @author richardrodgers
+ */
+
+public class ExportManifest {
+
+    private static final int INITIAL_ENTRIES = 1024;
+
+    private final Path exportMap;
+    // number of entries
+    private int size = 0;
+    private byte[] levels = new byte[INITIAL_ENTRIES];
+    private byte[] ctypes = new byte[INITIAL_ENTRIES];
+    // offset of each entry's handle in handles - handle i ends where i + 1 begins
+    private int[] offsets = new int[INITIAL_ENTRIES + 1];
+    // UTF-8 bytes of all handles, in entry order
+    private byte[] handles = new byte[INITIAL_ENTRIES * 16];
+    // appends entries to manifest file while it is built
+    private OutputStream appender;
+    // are all entries present?
+    private boolean complete = false;
+    // reason building stopped, if it failed
+    private Throwable failure;
+
+    /**
+     * Creates an empty manifest, serialized at passed location.
+     *
+     * @param exportMap the manifest (export.map) file
+     */
+    public ExportManifest(Path exportMap) {
+        this.exportMap = exportMap;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return size the number of entries
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the handle of the entry at passed index.
+     *
+     * @param index the entry index
+     * @return handle the object handle
+     */
+    public synchronized String handle(int index) {
+        checkIndex(index);
+        return new String(handles, offsets[index], offsets[index + 1] - offsets[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the content type (a DSpace Constants type) of the entry at passed index.
+     *
+     * @param index the entry index
+     * @return ctype the content type
+     */
+    public synchronized int ctype(int index) {
+        checkIndex(index);
+        return ctypes[index];
+    }
+
+    /**
+     * Returns the tree level of the entry at passed index - 0 for a root.
+     *
+     * @param index the entry index
+     * @return level the tree level
+     */
+    public synchronized int level(int index) {
+        checkIndex(index);
+        return levels[index];
+    }
+
+    public int addParents(Stack<Community> parents) throws IOException {
+        int level = 0;
+        if (! parents.empty()) {
+            Community parent = parents.pop();
+            while (parent != null) {
+                add(parent.getHandle(), level++, Constants.COMMUNITY);
+                parent = parents.empty() ? null : parents.pop();
+            }
+        }
+        return level;
+    }
+
+    public void addCommunity(Community comm, int level) throws IOException, SQLException {
+        add(comm.getHandle(), level, Constants.COMMUNITY);
+        for (Community subComm : comm.getSubcommunities()) {
+            addCommunity(subComm, level + 1);
+        }
+        for (Collection coll : comm.getCollections()) {
+            addCollection(coll, level + 1);
+        }
+    }
+
+    public void addCollection(Collection coll, int level) throws IOException, SQLException {
+        add(coll.getHandle(), level, Constants.COLLECTION);
+        ItemIterator iiter = coll.getItems();
+        while(iiter.hasNext()) {
+            Item item = iiter.next();
+            add(item.getHandle(), level + 1, Constants.ITEM);
+            // only the handle is needed - don't let the context cache every item
+            item.decache();
+        }
+        iiter.close();
+    }
+
+    /**
+     * Appends an entry.
+     *
+     * @param handle the object handle
+     * @param level the tree level of the object
+     * @param ctype the content type of the object
+     */
+    public synchronized void add(String handle, int level, int ctype) throws IOException {
+        if (failure != null) {
+            throw new IOException("Manifest building stopped: " + failure.getMessage(), failure);
+        }
+        byte[] bytes = handle.getBytes(StandardCharsets.UTF_8);
+        ensureEntries(size + 1);
+        ensureHandles(offsets[size] + bytes.length);
+        System.arraycopy(bytes, 0, handles, offsets[size], bytes.length);
+        setEntry(level, ctype, offsets[size] + bytes.length);
+        if (appender != null) {
+            writeEntry(appender, size - 1);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Begins building the manifest incrementally, replacing any prior manifest
+     * file: each entry added is appended to the file, and made available
+     * to consumers. Building ends with close(), or fail().
+     */
+    public synchronized void open() throws IOException {
+        appender = new BufferedOutputStream(Files.newOutputStream(exportMap), 65536);
+    }
+
+    /**
+     * Returns whether the manifest is being built incrementally.
+     *
+     * @return open true if opened, and not yet closed or failed
+     */
+    public synchronized boolean isOpen() {
+        return appender != null;
+    }
+
+    /**
+     * Ends building of the manifest, which is then complete.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            if (appender != null) {
+                appender.close();
+            }
+        } finally {
+            appender = null;
+            complete = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Stops building of the manifest - whether the builder or a consumer has failed.
+     * Consumers awaiting entries, and further additions, fail with the passed cause.
+     * Has no effect on a complete manifest.
+     *
+     * @param cause the reason for stopping
+     */
+    public synchronized void fail(Throwable cause) {
+        if (complete || failure != null) {
+            return;
+        }
+        failure = cause;
+        if (appender != null) {
+            try {
+                appender.close();
+            } catch (IOException ioE) {}
+            appender = null;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Awaits the entry at passed index, returning false if the manifest
+     * is complete without it.
+     *
+     * @param index the entry index
+     * @return present true if entry present, false if it never will be
+     * @throws IOException if manifest building failed, or the wait was interrupted
+     */
+    public synchronized boolean await(int index) throws IOException {
+        try {
+            while (index >= size && ! complete && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException intE) {
+            throw new InterruptedIOException("Interrupted awaiting manifest entry: " + index);
+        }
+        if (index < size) {
+            return true;
+        } else if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        return false;
+    }
+
+    /**
+     * Writes all entries to the manifest file, replacing any prior contents.
+     * The manifest is then complete.
+     */
+    public synchronized void write() throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(exportMap), 65536)) {
+            for (int i = 0; i < size; i++) {
+                writeEntry(out, i);
+            }
+        }
+        complete = true;
+    }
+
+    /**
+     * Appends entries read from the manifest file. The manifest is then complete.
+     */
+    public synchronized void read() throws IOException {
+        try (ByteReader in = new ByteReader(Files.newInputStream(exportMap))) {
+            int lineNo = 1;
+            int ch = in.read();
+            while (ch != -1) {
+                int level = 0;
+                for (; ch >= '0' && ch <= '9'; ch = in.read()) {
+                    level = level * 10 + (ch - '0');
+                }
+                if (ch != ' ') {
+                    throw new IOException("Malformed level at line " + lineNo + " of " + exportMap);
+                }
+                int ctype = 0;
+                for (ch = in.read(); ch >= '0' && ch <= '9'; ch = in.read()) {
+                    ctype = ctype * 10 + (ch - '0');
+                }
+                if (ch != ' ') {
+                    throw new IOException("Malformed type at line " + lineNo + " of " + exportMap);
+                }
+                // handle bytes are copied straight into the buffer
+                ensureEntries(size + 1);
+                int end = offsets[size];
+                for (ch = in.read(); ch != -1 && ch != '\n' && ch != '\r'; ch = in.read()) {
+                    ensureHandles(end + 1);
+                    handles[end++] = (byte)ch;
+                }
+                if (end == offsets[size]) {
+                    throw new IOException("Missing handle at line " + lineNo + " of " + exportMap);
+                }
+                setEntry(level, ctype, end);
+                while (ch == '\r' || ch == '\n') {
+                    if (ch == '\n') {
+                        lineNo++;
+                    }
+                    ch = in.read();
+                }
+            }
+        }
+        complete = true;
+    }
+
+    // index of each entry's parent entry, or -1 if a root
+    public synchronized int[] parents() {
+        int[] parents = new int[size];
+        // most recent entry seen at each level
+        int[] lastAtLevel = new int[Byte.MAX_VALUE + 1];
+        for (int i = 0; i < size; i++) {
+            int level = levels[i];
+            parents[i] = (level > 0) ? lastAtLevel[level - 1] : -1;
+            lastAtLevel[level] = i;
+        }
+        return parents;
+    }
+
+    private void writeEntry(OutputStream out, int index) throws IOException {
+        out.write(Integer.toString(levels[index]).getBytes(StandardCharsets.US_ASCII));
+        out.write(' ');
+        out.write(Integer.toString(ctypes[index]).getBytes(StandardCharsets.US_ASCII));
+        out.write(' ');
+        out.write(handles, offsets[index], offsets[index + 1] - offsets[index]);
+        out.write('\n');
+    }
+
+    // records entry whose handle bytes are already in place, ending at passed offset
+    private void setEntry(int level, int ctype, int end) {
+        if (level < 0 || level > Byte.MAX_VALUE || ctype < 0 || ctype > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Level or type out of range: " + level + " " + ctype);
+        }
+        levels[size] = (byte)level;
+        ctypes[size] = (byte)ctype;
+        offsets[++size] = end;
+    }
+
+    private void ensureEntries(int capacity) {
+        if (capacity > levels.length) {
+            int newLength = Math.max(capacity, levels.length + (levels.length >> 1));
+            levels = Arrays.copyOf(levels, newLength);
+            ctypes = Arrays.copyOf(ctypes, newLength);
+            offsets = Arrays.copyOf(offsets, newLength + 1);
+        }
+    }
+
+    private void ensureHandles(int capacity) {
+        if (capacity > handles.length) {
+            handles = Arrays.copyOf(handles, Math.max(capacity, handles.length + (handles.length >> 1)));
+        }
+    }
+
+    // unsynchronized buffered byte reader
+    private static class ByteReader implements AutoCloseable {
+
+        private final InputStream in;
+        private final byte[] buf = new byte[65536];
+        private int pos = 0;
+        private int limit = 0;
+
+        ByteReader(InputStream in) {
+            this.in = in;
+        }
+
+        int read() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buf);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No manifest entry: " + index);
+        }
+    }
+}
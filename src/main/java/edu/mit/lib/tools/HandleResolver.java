@@ -0,0 +1,173 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dspace.content.Collection;
+import org.dspace.content.Community;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.content.ItemIterator;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import edu.mit.lib.bagit.Metrics;
+
+/**
+ * HandleResolver resolves handles to DSpace objects in bulk: a batch of
+ * handles is mapped to resource ids with one query, and the items among
+ * them loaded with another, in place of the several queries per handle
+ * HandleManager.resolveToObject makes. Communities and collections, which
+ * are resolved over and over, are kept in a bounded cache of recent use.
+ * Like the Context it uses, a resolver is not thread-safe.
+ *
+ * @author richardrodgers
+ */
+
+public class HandleResolver {
+
+    // default maximum number of communities and collections cached
+    private static final int CACHE_SIZE = 1000;
+
+    private final Context context;
+    private final int batchSize;
+    // recently used communities and collections, by type and id
+    private final Map<Long, DSpaceObject> containers;
+
+    /**
+     * Returns a new resolver using passed context.
+     *
+     * @param context the DSpace context
+     * @param batchSize the maximum number of handles resolved in one query
+     */
+    public HandleResolver(Context context, int batchSize) {
+        this(context, batchSize, CACHE_SIZE);
+    }
+
+    /**
+     * Returns a new resolver using passed context and container cache size.
+     *
+     * @param context the DSpace context
+     * @param batchSize the maximum number of handles resolved in one query
+     * @param cacheSize the maximum number of communities and collections cached
+     */
+    public HandleResolver(Context context, int batchSize, final int cacheSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1");
+        }
+        this.context = context;
+        this.batchSize = batchSize;
+        containers = new LinkedHashMap<Long, DSpaceObject>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, DSpaceObject> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Resolves passed handles to objects. Unresolvable handles are
+     * absent from the returned map.
+     *
+     * @param handles the handles to resolve
+     * @return objects map of handle to object
+     */
+    public Map<String, DSpaceObject> resolve(List<String> handles) throws SQLException {
+        long timer = Metrics.start();
+        Map<String, DSpaceObject> objects = new HashMap<>();
+        for (int start = 0; start < handles.size(); start += batchSize) {
+            resolveBatch(handles.subList(start, Math.min(start + batchSize, handles.size())), objects);
+        }
+        Metrics.stop("resolve", timer, 0L);
+        Metrics.count("resolve.handles", handles.size());
+        return objects;
+    }
+
+    /**
+     * Resolves a single handle to an object.
+     *
+     * @param handle the handle to resolve
+     * @return object the object, or null if unresolvable
+     */
+    public DSpaceObject resolve(String handle) throws SQLException {
+        List<String> handles = new ArrayList<>();
+        handles.add(handle);
+        return resolve(handles).get(handle);
+    }
+
+    private void resolveBatch(List<String> handles, Map<String, DSpaceObject> objects) throws SQLException {
+        // one query maps all handles to resources
+        Map<Integer, String> itemHandles = new HashMap<>();
+        TableRowIterator tri = DatabaseManager.query(context,
+                "SELECT handle, resource_type_id, resource_id FROM handle WHERE handle IN (" +
+                placeholders(handles.size()) + ")", handles.toArray());
+        try {
+            while (tri.hasNext()) {
+                TableRow row = tri.next();
+                String handle = row.getStringColumn("handle");
+                int type = row.getIntColumn("resource_type_id");
+                int id = row.getIntColumn("resource_id");
+                if (type == Constants.ITEM) {
+                    itemHandles.put(id, handle);
+                } else {
+                    DSpaceObject dso = container(type, id);
+                    if (dso != null) {
+                        objects.put(handle, dso);
+                    }
+                }
+            }
+        } finally {
+            tri.close();
+        }
+        if (itemHandles.isEmpty()) {
+            return;
+        }
+        // and one loads all items
+        ItemIterator items = new ItemIterator(context, DatabaseManager.queryTable(context, "item",
+                "SELECT * FROM item WHERE item_id IN (" + placeholders(itemHandles.size()) + ")",
+                itemHandles.keySet().toArray()));
+        try {
+            while (items.hasNext()) {
+                Item item = items.next();
+                objects.put(itemHandles.get(item.getID()), item);
+            }
+        } finally {
+            items.close();
+        }
+    }
+
+    private DSpaceObject container(int type, int id) throws SQLException {
+        Long key = ((long)type << 32) | id;
+        DSpaceObject dso = containers.get(key);
+        if (dso == null) {
+            if (type == Constants.COMMUNITY) {
+                dso = Community.find(context, id);
+            } else if (type == Constants.COLLECTION) {
+                dso = Collection.find(context, id);
+            }
+            if (dso != null) {
+                containers.put(key, dso);
+            }
+        }
+        return dso;
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder("?");
+        for (int i = 1; i < count; i++) {
+            sb.append(", ?");
+        }
+        return sb.toString();
+    }
+}
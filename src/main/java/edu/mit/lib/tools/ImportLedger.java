@@ -0,0 +1,179 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ImportLedger is a durable, append-only record of package uploads to an
+ * MDS target. Each line records a handle, the upload state ('done' or 'failed'),
+ * the HTTP response code (0 if no response was received, as on a timeout),
+ * the request latency in milliseconds, and the location of the created object,
+ * if the target reported one - escaped, so it occupies a single field. Every attempt
+ * is recorded, including those that fail. A header line names the target, so that
+ * a ledger is never applied to uploads to another. When an import is rerun,
+ * completed uploads are skipped, and their recorded locations serve as
+ * parents of the remaining uploads. Where a handle has several records,
+ * the last one is authoritative.
+ *
+ * @author richardrodgers
+ */
+
+public class ImportLedger {
+
+    static final String DONE = "done";
+    static final String FAILED = "failed";
+    // placeholder for an absent location
+    private static final String NONE = "-";
+    // header line prefix, followed by the target URL
+    private static final String TARGET = "# target ";
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final BufferedWriter writer;
+
+    /**
+     * Opens ledger for passed target at passed location, creating it if it does not exist.
+     *
+     * @param ledgerFile the ledger file path
+     * @param target the URL of the target uploaded to
+     * @throws IOException if the ledger records uploads to a different target
+     */
+    public ImportLedger(Path ledgerFile, String target) throws IOException {
+        boolean fresh = Files.notExists(ledgerFile) || Files.size(ledgerFile) == 0L;
+        if (! fresh) {
+            try (BufferedReader reader = Files.newBufferedReader(ledgerFile, StandardCharsets.UTF_8)) {
+                String line = null;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(TARGET)) {
+                        String recorded = line.substring(TARGET.length());
+                        if (! recorded.equals(target)) {
+                            throw new IOException("Ledger " + ledgerFile + " records uploads to another target: " + recorded);
+                        }
+                        continue;
+                    }
+                    String[] parts = line.split(" ");
+                    // ignore any partially written final line
+                    if (parts.length == 5) {
+                        String location = NONE.equals(parts[4]) ? null : unescape(parts[4]);
+                        entries.put(parts[0], new Entry(parts[1], Integer.parseInt(parts[2]),
+                                                        Long.parseLong(parts[3]), location));
+                    }
+                }
+            }
+        }
+        writer = Files.newBufferedWriter(ledgerFile, StandardCharsets.UTF_8,
+                                         StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (fresh) {
+            writer.write(TARGET + target);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Returns the record of a successful earlier upload of passed handle
+     *
+     * @param handle the handle of the uploaded object
+     * @return entry the upload record, or null if not successfully uploaded
+     */
+    public Entry completed(String handle) {
+        Entry entry = entries.get(handle);
+        return (entry != null && DONE.equals(entry.state)) ? entry : null;
+    }
+
+    /**
+     * Records the outcome of an upload of passed handle.
+     *
+     * @param handle the handle of the uploaded object
+     * @param response the upload response
+     */
+    public void record(String handle, MdsTransport.Response response) throws IOException {
+        record(handle, new Entry(response.isSuccess() ? DONE : FAILED, response.status,
+                                 response.latency, response.location));
+    }
+
+    /**
+     * Records an upload of passed handle that received no response - a transport
+     * error or timeout.
+     *
+     * @param handle the handle of the object
+     * @param latency the time until failure, in milliseconds
+     */
+    public void recordError(String handle, long latency) throws IOException {
+        record(handle, new Entry(FAILED, 0, latency, null));
+    }
+
+    private void record(String handle, Entry entry) throws IOException {
+        synchronized (writer) {
+            writer.write(handle + " " + entry.state + " " + entry.status + " " + entry.latency + " " +
+                         ((entry.location != null) ? escape(entry.location) : NONE));
+            writer.newLine();
+            writer.flush();
+        }
+        entries.put(handle, entry);
+    }
+
+    // percent-encodes the characters that would break a line into the wrong fields
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '%': sb.append("%25"); break;
+                case ' ': sb.append("%20"); break;
+                case '\t': sb.append("%09"); break;
+                case '\n': sb.append("%0A"); break;
+                case '\r': sb.append("%0D"); break;
+                default: sb.append(c);
+            }
+        }
+        // a lone '-' would read as no location
+        return NONE.equals(value) ? "%2D" : sb.toString();
+    }
+
+    private static String unescape(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' && i + 2 < value.length()) {
+                sb.append((char)Integer.parseInt(value.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Closes the ledger.
+     */
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+
+    public static class Entry {
+        public final String state;
+        public final int status;
+        public final long latency;
+        public final String location;
+
+        Entry(String state, int status, long latency, String location) {
+            this.state = state;
+            this.status = status;
+            this.latency = latency;
+            this.location = location;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * ImportScheduler runs package uploads concurrently, subject only to the
+ * constraint that an object must be created before any of its children.
+ * The dependency graph is a forest given by an array of parent indices:
+ * roots are scheduled immediately, and children become eligible as soon
+ * as their parent has been successfully uploaded. Once any upload fails,
+ * no further uploads are started, and the first failure is reported when
+ * in-flight uploads have drained.
+ *
+ * A scheduler may also be told to await readiness of each node, for when
+ * packages are produced while the import runs: a node is then eligible
+ * only once its parent is uploaded and it has been declared ready.
+ *
+ * Concurrency may be fixed, or set by an UploadLimiter as uploads proceed:
+ * eligible nodes then wait their turn while the limit is reached.
+ *
+ * @author richardrodgers
+ */
+
+public class ImportScheduler {
+
+    /**
+     * An upload of a single node in the graph
+     */
+    public interface Task {
+        /**
+         * Uploads the node at the passed index.
+         *
+         * @param index the node index
+         * @param parentRef the reference returned by the parent's upload, or null for roots
+         * @return ref a reference to the created object, to be passed to its children
+         */
+        String upload(int index, String parentRef) throws Exception;
+    }
+
+    private final int[] parents;
+    // first child and next sibling of each node - -1 if none
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int concurrency;
+    // adapts concurrency to the target, if set
+    private final UploadLimiter limiter;
+    // node readiness, and references of completed nodes
+    private final boolean[] ready;
+    private final String[] refs;
+    // completions, readiness and failures, in order of occurrence
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+
+    /**
+     * Returns a new scheduler for the graph given by passed parent indices
+     *
+     * @param parents index of each node's parent, or -1 for roots
+     * @param concurrency the maximum number of concurrent uploads
+     */
+    public ImportScheduler(int[] parents, int concurrency) {
+        this(parents, concurrency, false);
+    }
+
+    /**
+     * Returns a new scheduler for the graph given by passed parent indices,
+     * which may require each node be declared ready before it is uploaded.
+     *
+     * @param parents index of each node's parent, or -1 for roots
+     * @param concurrency the maximum number of concurrent uploads
+     * @param awaitReady if true, nodes are uploaded only once declared ready
+     */
+    public ImportScheduler(int[] parents, int concurrency, boolean awaitReady) {
+        this(parents, concurrency, awaitReady, null);
+    }
+
+    /**
+     * Returns a new scheduler for the graph given by passed parent indices,
+     * whose concurrency is adapted by passed limiter.
+     *
+     * @param parents index of each node's parent, or -1 for roots
+     * @param concurrency the maximum number of concurrent uploads
+     * @param awaitReady if true, nodes are uploaded only once declared ready
+     * @param limiter the limiter adapting concurrency, or null for fixed concurrency
+     */
+    public ImportScheduler(int[] parents, int concurrency, boolean awaitReady, UploadLimiter limiter) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        this.parents = parents;
+        this.concurrency = concurrency;
+        this.limiter = limiter;
+        firstChild = new int[parents.length];
+        nextSibling = new int[parents.length];
+        ready = new boolean[parents.length];
+        refs = new String[parents.length];
+        int[] lastChild = new int[parents.length];
+        for (int i = 0; i < parents.length; i++) {
+            firstChild[i] = nextSibling[i] = lastChild[i] = -1;
+            ready[i] = ! awaitReady;
+        }
+        // link children in order, so that siblings are scheduled in manifest order
+        for (int i = 0; i < parents.length; i++) {
+            int parent = parents[i];
+            if (parent == -1) {
+                continue;
+            } else if (firstChild[parent] == -1) {
+                firstChild[parent] = lastChild[parent] = i;
+            } else {
+                nextSibling[lastChild[parent]] = i;
+                lastChild[parent] = i;
+            }
+        }
+    }
+
+    /**
+     * Declares the node at passed index ready for upload.
+     * May be called from any thread.
+     *
+     * @param index the node index
+     */
+    public void ready(int index) {
+        events.add(new Event(Event.READY, index, null, null));
+    }
+
+    /**
+     * Reports a failure outside of any upload (e.g. in producing a package),
+     * which stops the import. May be called from any thread.
+     *
+     * @param cause the failure
+     */
+    public void fail(Throwable cause) {
+        events.add(new Event(Event.FAILED, -1, null, cause));
+    }
+
+    /**
+     * Uploads all nodes in graph, returning when all are complete.
+     *
+     * @param task the upload to perform for each node
+     * @throws IOException if any upload fails
+     */
+    public void run(final Task task) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        // eligible uploads, in order, awaiting their turn
+        Queue<Upload> eligible = new ArrayDeque<>();
+        Throwable failure = null;
+        int inFlight = 0;
+        int finished = 0;
+        try {
+            for (int i = 0; i < parents.length; i++) {
+                if (parents[i] == -1 && ready[i]) {
+                    eligible.add(new Upload(task, i, null));
+                }
+            }
+            while (true) {
+                // start as many eligible uploads as the limit allows
+                int limit = (limiter != null) ? Math.min(limiter.limit(), concurrency) : concurrency;
+                while (failure == null && inFlight < limit && ! eligible.isEmpty()) {
+                    pool.submit(eligible.remove());
+                    inFlight++;
+                }
+                if (finished == parents.length || (failure != null && inFlight == 0)) {
+                    break;
+                }
+                Event event = events.take();
+                switch (event.kind) {
+                    case Event.READY:
+                        ready[event.index] = true;
+                        int parent = parents[event.index];
+                        if (parent == -1 || refs[parent] != null) {
+                            eligible.add(new Upload(task, event.index, (parent == -1) ? null : refs[parent]));
+                        }
+                        break;
+                    case Event.DONE:
+                        inFlight--;
+                        finished++;
+                        refs[event.index] = event.ref;
+                        // parent now exists - release its ready children
+                        for (int child = firstChild[event.index]; child != -1; child = nextSibling[child]) {
+                            if (ready[child]) {
+                                eligible.add(new Upload(task, child, event.ref));
+                            }
+                        }
+                        break;
+                    case Event.FAILED:
+                        if (event.index != -1) {
+                            inFlight--;
+                        }
+                        if (failure == null) {
+                            failure = event.cause;
+                        }
+                        break;
+                }
+            }
+        } catch (InterruptedException intE) {
+            pool.shutdownNow();
+            throw new IOException("Import interrupted", intE);
+        } finally {
+            pool.shutdown();
+        }
+        if (failure instanceof IOException) {
+            throw (IOException)failure;
+        } else if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+    }
+
+    private static class Event {
+        static final int READY = 0;
+        static final int DONE = 1;
+        static final int FAILED = 2;
+
+        final int kind;
+        final int index;
+        final String ref;
+        final Throwable cause;
+
+        Event(int kind, int index, String ref, Throwable cause) {
+            this.kind = kind;
+            this.index = index;
+            this.ref = ref;
+            this.cause = cause;
+        }
+    }
+
+    private class Upload implements Runnable {
+
+        private final Task task;
+        private final int index;
+        private final String parentRef;
+
+        public Upload(Task task, int index, String parentRef) {
+            this.task = task;
+            this.index = index;
+            this.parentRef = parentRef;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String ref = task.upload(index, parentRef);
+                // a null reference would leave children waiting forever
+                events.add(new Event(Event.DONE, index, (ref != null) ? ref : "", null));
+            } catch (Throwable t) {
+                events.add(new Event(Event.FAILED, index, null, t));
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+
+/**
+ * MdsTransport is a shared HTTP transport for posting packages to an MDS
+ * repository. All requests go through a single client backed by a pool of
+ * keep-alive connections, so connections are reused across uploads rather
+ * than established for each package. Uploads may share a cap on the rate
+ * bytes are sent, across all connections. Safe for use by concurrent uploaders.
+ * Uses the older Apache http client library to be compatible with more systems.
+ *
+ * @author richardrodgers
+ */
+
+public class MdsTransport {
+
+    private final MultiThreadedHttpConnectionManager connMgr;
+    private final HttpClient client;
+    // shared limit on upload bandwidth - null for none
+    private TokenBucket bucket;
+
+    /**
+     * Returns a new transport with a connection pool of passed size
+     *
+     * @param maxConnections the maximum number of pooled connections
+     */
+    public MdsTransport(int maxConnections) {
+        connMgr = new MultiThreadedHttpConnectionManager();
+        HttpConnectionManagerParams params = connMgr.getParams();
+        // all uploads go to the same host
+        params.setDefaultMaxConnectionsPerHost(maxConnections);
+        params.setMaxTotalConnections(maxConnections);
+        params.setStaleCheckingEnabled(true);
+        params.setTcpNoDelay(true);
+        client = new HttpClient(connMgr);
+        // never silently re-POST a package - duplicates would be created
+        client.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, new DefaultHttpMethodRetryHandler(0, false));
+    }
+
+    /**
+     * Sets the timeout for establishing connections
+     *
+     * @param millis the timeout in milliseconds - 0 for none
+     * @return transport this transport
+     */
+    public MdsTransport connectTimeout(int millis) {
+        connMgr.getParams().setConnectionTimeout(millis);
+        return this;
+    }
+
+    /**
+     * Sets the socket read timeout, i.e. the longest wait for a response
+     *
+     * @param millis the timeout in milliseconds - 0 for none
+     * @return transport this transport
+     */
+    public MdsTransport socketTimeout(int millis) {
+        connMgr.getParams().setSoTimeout(millis);
+        return this;
+    }
+
+    /**
+     * Sets the socket send and receive buffer sizes
+     *
+     * @param bytes the buffer size in bytes
+     * @return transport this transport
+     */
+    public MdsTransport bufferSize(int bytes) {
+        connMgr.getParams().setSendBufferSize(bytes);
+        connMgr.getParams().setReceiveBufferSize(bytes);
+        return this;
+    }
+
+    /**
+     * Limits the rate at which request bodies are sent, over all connections
+     *
+     * @param bytesPerSec the maximum rate in bytes per second - 0 for no limit
+     * @return transport this transport
+     */
+    public MdsTransport rateLimit(long bytesPerSec) {
+        bucket = (bytesPerSec > 0L) ? new TokenBucket(bytesPerSec) : null;
+        return this;
+    }
+
+    /**
+     * POSTs passed entity to target URI, returning the response. Time spent
+     * waiting on the rate limit is reported apart from the response latency,
+     * so that latency reflects the target alone.
+     *
+     * @param targetUri the URI to post to
+     * @param entity the request body
+     * @return response the HTTP response status, location and latency
+     */
+    public Response post(String targetUri, RequestEntity entity) throws IOException {
+        PostMethod post = new PostMethod(targetUri);
+        ThrottledEntity throttled = (bucket != null) ? new ThrottledEntity(entity, bucket) : null;
+        post.setRequestEntity((throttled != null) ? throttled : entity);
+        long start = System.currentTimeMillis();
+        try {
+            int status = client.executeMethod(post);
+            long elapsed = System.currentTimeMillis() - start;
+            long waited = (throttled != null) ? Math.min(throttled.waited / 1000000L, elapsed) : 0L;
+            Header location = post.getResponseHeader("Location");
+            return new Response(status, (location != null) ? resolve(targetUri, location.getValue()) : null,
+                                elapsed - waited, retryAfter(post.getResponseHeader("Retry-After")), waited);
+        } finally {
+            // returns connection to the pool for reuse
+            post.releaseConnection();
+        }
+    }
+
+    /**
+     * Closes all pooled connections.
+     */
+    public void close() {
+        connMgr.shutdown();
+    }
+
+    // a Location may be relative to the request URI - make it absolute
+    private static String resolve(String targetUri, String location) {
+        try {
+            return URI.create(targetUri).resolve(location.trim()).toString();
+        } catch (IllegalArgumentException iaE) {
+            // not a valid URI reference - keep as given
+            return location;
+        }
+    }
+
+    // seconds to wait before retrying, if given - HTTP dates are not honored
+    private static int retryAfter(Header header) {
+        if (header != null) {
+            try {
+                return Math.max(Integer.parseInt(header.getValue().trim()), 0);
+            } catch (NumberFormatException nfE) {}
+        }
+        return -1;
+    }
+
+    /**
+     * Limit on the rate bytes are sent, shared by all uploads. Each send takes
+     * tokens for its bytes, and waits out any shortfall - up to a second's worth
+     * of unused tokens may accumulate, allowing short bursts.
+     */
+    static class TokenBucket {
+
+        private final long rate;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            tokens = rate;
+        }
+
+        // returns the time waited, in nanoseconds
+        long take(int bytes) throws InterruptedIOException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(tokens + (now - refilled) * rate / 1e9, rate);
+                refilled = now;
+                // tokens may go negative - later senders wait for the debt too
+                tokens -= bytes;
+                wait = (tokens < 0.0) ? (long)(-tokens * 1e9 / rate) : 0L;
+            }
+            if (wait > 0L) {
+                long start = System.nanoTime();
+                try {
+                    Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+                } catch (InterruptedException intE) {
+                    throw new InterruptedIOException("Upload interrupted");
+                }
+                return System.nanoTime() - start;
+            }
+            return 0L;
+        }
+    }
+
+    // request body sent subject to the bandwidth limit
+    private static class ThrottledEntity implements RequestEntity {
+
+        private final RequestEntity entity;
+        private final TokenBucket bucket;
+        // time spent waiting on the bucket, in nanoseconds - entity is written by the posting thread
+        long waited = 0L;
+
+        ThrottledEntity(RequestEntity entity, TokenBucket bucket) {
+            this.entity = entity;
+            this.bucket = bucket;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return entity.isRepeatable();
+        }
+
+        @Override
+        public void writeRequest(final OutputStream out) throws IOException {
+            entity.writeRequest(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    waited += bucket.take(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    waited += bucket.take(len);
+                    out.write(b, off, len);
+                }
+            });
+        }
+
+        @Override
+        public long getContentLength() {
+            return entity.getContentLength();
+        }
+
+        @Override
+        public String getContentType() {
+            return entity.getContentType();
+        }
+    }
+
+    /**
+     * Outcome of a single POST
+     */
+    public static class Response {
+        public final int status;
+        // location of created object, if given
+        public final String location;
+        // elapsed time in milliseconds, less any time throttled
+        public final long latency;
+        // seconds the target asked to wait before retrying, or -1 if not given
+        public final int retryAfter;
+        // time in milliseconds spent waiting on the rate limit
+        public final long throttled;
+
+        public Response(int status, String location, long latency, int retryAfter, long throttled) {
+            this.status = status;
+            this.location = location;
+            this.latency = latency;
+            this.retryAfter = retryAfter;
+            this.throttled = throttled;
+        }
+
+        public boolean isSuccess() {
+            return status >= 200 && status < 300;
+        }
+
+        // whether the target refused the request for overload, without acting on it
+        public boolean isRefused() {
+            return status == 429 || status == 503;
+        }
+
+        // whether the target signalled overload
+        public boolean isOverload() {
+            return status == 429 || status >= 500;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import edu.mit.lib.bagit.Metrics;
+
+/**
+ * MetricsRegistry collects the timings and counts of a run, for sizing hardware
+ * and finding bottlenecks. Each timed phase keeps a count, total and maximum
+ * time, bytes processed, and a histogram of times in power-of-two buckets, from
+ * which percentiles are estimated (to within a factor of two). Everything is
+ * lock-free, so phases may be timed from any thread. Installed as the bagit
+ * library Metrics, it also receives the library's phase timings. The registry
+ * is readable over JMX while a run proceeds, and may be written as a JSON report.
+ *
+ * @author richardrodgers
+ */
+
+public class MetricsRegistry extends Metrics implements DynamicMBean {
+
+    // statistics exposed for each phase over JMX
+    private static final String[] STATS = { "count", "totalMs", "meanMs", "p50Ms", "p90Ms", "p99Ms", "maxMs", "bytes" };
+
+    private final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final long started = System.currentTimeMillis();
+
+    @Override
+    protected void time(String phase, long nanos, long bytes) {
+        Timer timer = timers.get(phase);
+        if (timer == null) {
+            Timer prior = timers.putIfAbsent(phase, timer = new Timer());
+            if (prior != null) {
+                timer = prior;
+            }
+        }
+        timer.record(nanos, bytes);
+    }
+
+    @Override
+    protected void add(String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            AtomicLong prior = counters.putIfAbsent(name, counter = new AtomicLong());
+            if (prior != null) {
+                counter = prior;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+
+    /**
+     * Registers the registry with the platform MBean server, under passed name.
+     *
+     * @param name the object name, e.g. 'edu.mit.lib.tools:type=Metrics'
+     */
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+    }
+
+    /**
+     * Writes all timings and counts as a JSON document.
+     *
+     * @param file the report file
+     */
+    public void writeReport(Path file) throws IOException {
+        long elapsed = System.currentTimeMillis() - started;
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write("{\n  \"elapsedMs\": " + elapsed + ",\n  \"phases\": {");
+            String sep = "\n";
+            for (Map.Entry<String, Timer> entry : new TreeMap<>(timers).entrySet()) {
+                Timer timer = entry.getValue();
+                writer.write(sep + "    " + quote(entry.getKey()) + ": {");
+                for (int i = 0; i < STATS.length; i++) {
+                    writer.write(((i > 0) ? ", " : "") + quote(STATS[i]) + ": " + format(timer.stat(STATS[i])));
+                }
+                // throughput over time spent in the phase, summed across threads
+                if (timer.bytes.get() > 0L && timer.nanos.get() > 0L) {
+                    writer.write(", \"mbPerSec\": " + format((timer.bytes.get() / 1048576.0) / (timer.nanos.get() / 1e9)));
+                }
+                writer.write("}");
+                sep = ",\n";
+            }
+            writer.write("\n  },\n  \"counts\": {");
+            sep = "\n";
+            for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+                writer.write(sep + "    " + quote(entry.getKey()) + ": " + entry.getValue().get());
+                sep = ",\n";
+            }
+            writer.write("\n  }\n}\n");
+        }
+    }
+
+    // JMX attributes are named 'phase.stat' for timings, and by name for counts
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        AtomicLong counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        int dot = attribute.lastIndexOf('.');
+        Timer timer = (dot > 0) ? timers.get(attribute.substring(0, dot)) : null;
+        try {
+            if (timer != null) {
+                return timer.stat(attribute.substring(dot + 1));
+            }
+        } catch (IllegalArgumentException iaE) {}
+        throw new AttributeNotFoundException("No metric: " + attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException anfE) {
+                // omitted, per DynamicMBean contract
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // phases appear as they are first timed
+        List<MBeanAttributeInfo> attrs = new ArrayList<>();
+        for (String phase : new TreeMap<>(timers).keySet()) {
+            for (String stat : STATS) {
+                String type = ("count".equals(stat) || "bytes".equals(stat)) ? "java.lang.Long" : "java.lang.Double";
+                attrs.add(new MBeanAttributeInfo(phase + "." + stat, type, stat + " of " + phase, true, false, false));
+            }
+        }
+        for (String name : new TreeMap<>(counters).keySet()) {
+            attrs.add(new MBeanAttributeInfo(name, "java.lang.Long", "count of " + name, true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "Modernize run metrics",
+                             attrs.toArray(new MBeanAttributeInfo[attrs.size()]),
+                             null, new MBeanOperationInfo[0], null);
+    }
+
+    private static String quote(String str) {
+        return "\"" + str.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String format(Object value) {
+        return (value instanceof Double) ? String.format(Locale.ROOT, "%.3f", (Double)value) : value.toString();
+    }
+
+    // timings of a single phase
+    private static class Timer {
+
+        // bucket i counts times t with 2^i <= t < 2^(i+1) nanoseconds
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        void record(long time, long size) {
+            time = Math.max(time, 1L);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(time));
+            count.incrementAndGet();
+            nanos.addAndGet(time);
+            bytes.addAndGet(size);
+            long prior;
+            while (time > (prior = max.get()) && ! max.compareAndSet(prior, time)) {}
+        }
+
+        Object stat(String stat) throws IllegalArgumentException {
+            switch (stat) {
+                case "count": return count.get();
+                case "totalMs": return nanos.get() / 1e6;
+                case "meanMs": return (count.get() > 0L) ? nanos.get() / 1e6 / count.get() : 0.0;
+                case "p50Ms": return percentile(0.50);
+                case "p90Ms": return percentile(0.90);
+                case "p99Ms": return percentile(0.99);
+                case "maxMs": return max.get() / 1e6;
+                case "bytes": return bytes.get();
+                default: throw new IllegalArgumentException("No statistic: " + stat);
+            }
+        }
+
+        // upper bound of the bucket holding the passed fraction of times, in milliseconds
+        private double percentile(double fraction) {
+            long total = count.get();
+            if (total == 0L) {
+                return 0.0;
+            }
+            long rank = (long)Math.ceil(total * fraction);
+            long seen = 0L;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min((double)(1L << Math.min(i + 1, 62)), (double)max.get()) / 1e6;
+                }
+            }
+            return max.get() / 1e6;
+        }
+    }
+}
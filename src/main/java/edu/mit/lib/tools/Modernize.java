@@ -4,9 +4,8 @@
  */
 package edu.mit.lib.tools;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
@@ -16,14 +15,31 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.PathMatcher;
 import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.text.SimpleDateFormat;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Scanner;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
 
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLOutputFactory;
@@ -40,9 +56,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.PosixParser;
 import org.apache.commons.lang.StringUtils;
 
-import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.methods.FileRequestEntity;
-import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.RequestEntity;
 
 import org.dspace.authorize.AuthorizeException;
@@ -52,14 +66,16 @@ import org.dspace.content.Collection;
 import org.dspace.content.Community;
 import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
-import org.dspace.content.ItemIterator;
 import org.dspace.core.Constants;
 import org.dspace.core.Context;
+import org.dspace.curate.Utils;
 import org.dspace.handle.HandleManager;
 import org.dspace.app.itemexport.ItemExport;
 
 import edu.mit.lib.bagit.Bag;
+import edu.mit.lib.bagit.CompressionPolicy;
 import edu.mit.lib.bagit.Filler;
+import edu.mit.lib.bagit.Metrics;
 
 import edu.mit.lib.bagit.BagUtils;
 import static edu.mit.lib.bagit.BagUtils.*;
@@ -72,14 +88,69 @@ import static edu.mit.lib.bagit.BagUtils.*;
 
 public class Modernize {
 
+    // export cursor value at which workers stop claiming manifest entries
+    private static final int STOPPED = Integer.MAX_VALUE / 2;
+    // number of manifest entries claimed, and their handles resolved, at once
+    private static final int RESOLVE_BATCH = 100;
+    // number of times an upload is attempted when the target refuses it for overload
+    private static final int UPLOAD_ATTEMPTS = 5;
+    // longest wait before retrying a refused upload, in seconds
+    private static final int MAX_BACKOFF = 60;
+
     private Context context;
     private Path scratchDir;
     private ExportManifest manif;
+    // number of concurrent export workers, each with own DSpace context
+    private int workers = 1;
+    // number of concurrent uploads to mds
+    private int concurrency = 1;
+    // socket timeout for uploads, in seconds
+    private int timeout = 600;
+    // shared connection pool for uploads
+    private MdsTransport transport;
+    // adapts number of concurrent uploads to the target, if set
+    private UploadLimiter limiter;
+    // maximum upload rate over all uploads, in bytes per second - 0 for no limit
+    private long bandwidth = 0L;
+    // record of completed packages, for resumable exports
+    private ExportJournal journal;
+    // recompute checksums of previously completed packages?
+    private boolean verify = false;
+    // target to upload to as packages are exported, if pipelining
+    private String pipeTarget;
+    // maximum number of exported packages awaiting upload, when pipelining
+    private int queueDepth = 0;
+    // checksum algorithms for package manifests - null for bag default
+    private Set<String> csAlgs;
+    // how package contents are compressed
+    private CompressionPolicy compression = new CompressionPolicy();
+    // threads compressing package contents, shared by export workers - null to compress on worker
+    private ExecutorService deflaters;
+    // URL under which shared bitstream contents are fetched, if deduplicating
+    private String contentUrl;
+    // store of bitstream contents shared among items, if deduplicating
+    private ContentStore store;
+    // local assetstores, from which bitstream files are packaged directly
+    private final AssetStore assets = new AssetStore();
+    // maximum number of objects cached by each export context - 0 for no limit
+    private int cacheLimit = 1000;
+    // number of seconds between progress reports
+    private int reportInterval = 60;
+    // progress of the current export or import
+    private ProgressReporter progress;
+    // timings and counts of this run
+    private final MetricsRegistry metrics = new MetricsRegistry();
 
     public Modernize(Path scratchDir) throws Exception {
         this.scratchDir = scratchDir;
         context = new Context();
-        manif = new ExportManifest();
+        manif = new ExportManifest(scratchDir.resolve("export.map"));
+        Metrics.install(metrics);
+        try {
+            metrics.register("edu.mit.lib.tools:type=Metrics,name=Modernize");
+        } catch (JMException jmE) {
+            System.out.println("Metrics not available over JMX: " + jmE.getMessage());
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -92,6 +163,20 @@ public class Modernize {
         options.addOption("i", "identifier", true, "root handle to migrate - 'all' for entire repo");
         options.addOption("t", "target", true, "URL of mds repository to import into");
         options.addOption("s", "scratch", true, "scratch directory for processing");
+        options.addOption("w", "workers", true, "number of parallel export workers (default 1)");
+        options.addOption("c", "concurrency", true, "number of concurrent uploads (default 1)");
+        options.addOption("e", "adaptive", true, "adapt the number of concurrent uploads to the target's latency and errors, up to this maximum (in place of -c)");
+        options.addOption("b", "bandwidth", true, "maximum upload rate over all concurrent uploads, in MB per second (default no limit)");
+        options.addOption("o", "timeout", true, "upload response timeout in seconds (default 600)");
+        options.addOption("v", "verify", false, "verify checksums of packages completed by an earlier export before skipping them");
+        options.addOption("p", "pipeline", false, "upload packages to target as they are exported, without keeping them in scratch");
+        options.addOption("q", "queue", true, "maximum number of exported packages awaiting upload when pipelining (default 2 x concurrency)");
+        options.addOption("a", "algorithms", true, "comma-separated checksum algorithms for package manifests (default MD5)");
+        options.addOption("z", "compression", true, "deflate level (0-9) for compressible package contents - already-compressed content is always stored (default 6)");
+        options.addOption("d", "deflaters", true, "number of threads compressing package contents, shared by all export workers (default: compress on export worker)");
+        options.addOption("u", "dedup", true, "write bitstream contents shared among items once, to scratch/content, and reference them in SIPs from this base URL");
+        options.addOption("r", "cache", true, "maximum number of objects cached by each DSpace context during export, which is cleared when exceeded - 0 for no limit (default 1000)");
+        options.addOption("g", "progress", true, "seconds between progress reports, which are also written to scratch/progress.json (default 60)");
         options.addOption("m", "migrate", false, "export for migration (remove handle and metadata that will be re-created in new system)");
         options.addOption("h", "help", false, "help");
 
@@ -118,25 +203,177 @@ public class Modernize {
         
         Modernize mod = new Modernize(Paths.get(scratch));
 
-        if (line.hasOption('i')) {
-            String id = line.getOptionValue('i');
-            if (id != null) {
-                mod.exportIdentifier(id);
-            } else {
-                mod.bail("Must provide an identifer!");
+        // always release resources and write the metrics report, however the run ends
+        try {
+            if (line.hasOption('w')) {
+                mod.setWorkers(Integer.parseInt(line.getOptionValue('w')));
+            }
+
+            if (line.hasOption('c')) {
+                mod.setConcurrency(Integer.parseInt(line.getOptionValue('c')));
+            }
+
+            if (line.hasOption('e')) {
+                mod.setAdaptive(Integer.parseInt(line.getOptionValue('e')));
+            }
+
+            if (line.hasOption('b')) {
+                mod.setBandwidth(Double.parseDouble(line.getOptionValue('b')));
+            }
+
+            if (line.hasOption('v')) {
+                mod.setVerify(true);
+            }
+
+            if (line.hasOption('o')) {
+                mod.setTimeout(Integer.parseInt(line.getOptionValue('o')));
+            }
+
+            if (line.hasOption('a')) {
+                mod.setAlgorithms(line.getOptionValue('a').split(","));
+            }
+
+            if (line.hasOption('z')) {
+                mod.setCompression(Integer.parseInt(line.getOptionValue('z')));
+            }
+
+            if (line.hasOption('d')) {
+                mod.setDeflaters(Integer.parseInt(line.getOptionValue('d')));
+            }
+
+            if (line.hasOption('u')) {
+                mod.setContentUrl(line.getOptionValue('u'));
+            }
+
+            if (line.hasOption('q')) {
+                mod.setQueueDepth(Integer.parseInt(line.getOptionValue('q')));
+            }
+
+            if (line.hasOption('r')) {
+                mod.setCacheLimit(Integer.parseInt(line.getOptionValue('r')));
             }
+
+            if (line.hasOption('g')) {
+                mod.setReportInterval(Integer.parseInt(line.getOptionValue('g')));
+            }
+
+            if (line.hasOption('p')) {
+                String targetUrl = line.getOptionValue('t');
+                if (line.hasOption('i') && targetUrl != null) {
+                    mod.setPipeline(targetUrl);
+                } else {
+                    mod.bail("Pipeline requires both an identifier and an URL to an mds repository!");
+                }
+            }
+
+            if (line.hasOption('i')) {
+                String id = line.getOptionValue('i');
+                if (id != null) {
+                    mod.exportIdentifier(id);
+                } else {
+                    mod.bail("Must provide an identifer!");
+                }
+            }
+
+            if (line.hasOption('t') && ! line.hasOption('p')) {
+                String targetUrl = line.getOptionValue('t');
+                if (targetUrl != null) {
+                    mod.importToMds(targetUrl);
+                } else {
+                    mod.bail("Must provide an URL to an mds repository!");
+                }
+            }
+        } finally {
+            mod.finish();
         }
+    }
 
-        if (line.hasOption('t')) {
-            String targetUrl = line.getOptionValue('t');
-            if (targetUrl != null) {
-                mod.importToMds(targetUrl);
-            } else {
-                mod.bail("Must provide an URL to an mds repository!");
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Workers must be at least 1");
+        }
+        this.workers = workers;
+    }
+
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+    }
+
+    public void setAdaptive(int maxConcurrency) {
+        limiter = new UploadLimiter(maxConcurrency);
+        concurrency = maxConcurrency;
+    }
+
+    public void setBandwidth(double mbPerSec) {
+        if (mbPerSec < 0.0) {
+            throw new IllegalArgumentException("Bandwidth must not be negative");
+        }
+        bandwidth = (long)(mbPerSec * 1048576.0);
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public void setAlgorithms(String... algorithms) {
+        csAlgs = new LinkedHashSet<>(Arrays.asList(algorithms));
+    }
+
+    public void setCompression(int level) {
+        compression = new CompressionPolicy(level);
+    }
+
+    public void setDeflaters(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Deflaters must be at least 1");
+        }
+        // daemon threads, so that an idle pool never keeps the JVM alive
+        deflaters = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "deflater-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
             }
+        });
+    }
+
+    public void setContentUrl(String contentUrl) {
+        this.contentUrl = contentUrl;
+    }
+
+    public void setPipeline(String targetUrl) {
+        pipeTarget = targetUrl;
+    }
+
+    public void setCacheLimit(int cacheLimit) {
+        if (cacheLimit < 0) {
+            throw new IllegalArgumentException("Cache limit must not be negative");
+        }
+        this.cacheLimit = cacheLimit;
+    }
+
+    public void setReportInterval(int reportInterval) {
+        if (reportInterval < 1) {
+            throw new IllegalArgumentException("Report interval must be at least 1 second");
         }
+        this.reportInterval = reportInterval;
+    }
 
-        mod.finish();
+    public void setQueueDepth(int queueDepth) {
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("Queue depth must be at least 1");
+        }
+        this.queueDepth = queueDepth;
     }
 
     private void exportIdentifier(String id) throws IOException, SQLException, AuthorizeException {
@@ -146,20 +383,97 @@ public class Modernize {
             if (dso == null) {
                 bail("Unresolvable identifier: " + id);
             }
-            // construct the manifest
+            if (dso.getType() != Constants.COMMUNITY && dso.getType() != Constants.COLLECTION) {
+                bail("Identifier: " + id + " is not a collection or community");
+            }
+        }
+        Future<Void> built = null;
+        if (pipeTarget != null) {
+            // upload scheduling needs the whole tree in advance - flush manifest
+            // to disk first, so it survives an interrupted export
+            buildManifest(context, id);
+            manif.write();
+        } else {
+            // export entries as the manifest builder discovers them
+            manif.open();
+            ExecutorService builder = Executors.newSingleThreadExecutor();
+            built = builder.submit(new ManifestBuilder(id));
+            builder.shutdown();
+        }
+        try {
+            if (contentUrl != null) {
+                List<String> storeAlgs = (csAlgs != null) ? new ArrayList<>(csAlgs) : Arrays.asList("MD5");
+                store = new ContentStore(context, scratchDir.resolve("content"), contentUrl, storeAlgs);
+            }
+            if (pipeTarget != null) {
+                pipelineToMds(pipeTarget);
+            } else {
+                manifestToScratch();
+                awaitManifest(built);
+            }
+        } finally {
+            // stops the builder if export ended early
+            manif.fail(new IOException("Export stopped"));
+            if (store != null) {
+                store.close();
+            }
+        }
+    }
+
+    // walks the content subtree with passed handle (or 'all') into the manifest
+    private void buildManifest(Context ctx, String id) throws IOException, SQLException {
+        if ( ! "all".equals(id)) {
+            DSpaceObject dso = HandleManager.resolveToObject(ctx, id);
             if (dso.getType() == Constants.COMMUNITY) {
                 communityManifest((Community)dso);
-            } else if (dso.getType() == Constants.COLLECTION) {
-                collectionManifest((Collection)dso);
             } else {
-                bail("Identifier: " + id + " is not a collection or community");
+                collectionManifest((Collection)dso);
             }
         } else {
-            repoManifest();
+            repoManifest(ctx);
+        }
+    }
+
+    // builds the manifest on a private DSpace context, while entries are exported
+    private class ManifestBuilder implements Callable<Void> {
+
+        private final String id;
+
+        public ManifestBuilder(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Context ctx = new Context();
+            try {
+                buildManifest(ctx, id);
+                manif.close();
+            } catch (Throwable t) {
+                // errors too, or workers would await entries forever
+                manif.fail(t);
+                throw t;
+            } finally {
+                ctx.abort();
+            }
+            return null;
+        }
+    }
+
+    private void awaitManifest(Future<Void> built) throws IOException, SQLException {
+        try {
+            built.get();
+        } catch (InterruptedException intE) {
+            throw new IOException("Export interrupted", intE);
+        } catch (ExecutionException exE) {
+            Throwable cause = exE.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof SQLException) {
+                throw (SQLException)cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
         }
-        manifestToScratch();
-        // flush manifest to disk fro possible future use
-        manif.write();
     }
 
     private void bail(String message) throws SQLException {
@@ -168,8 +482,8 @@ public class Modernize {
         System.exit(1);
     }
 
-    private void repoManifest() throws IOException, SQLException {
-        for (Community topComm: Community.findAllTop(context)) {
+    private void repoManifest(Context ctx) throws IOException, SQLException {
+        for (Community topComm: Community.findAllTop(ctx)) {
             communityManifest(topComm);
         }
     }
@@ -198,61 +512,401 @@ public class Modernize {
 
     public void manifestToScratch() throws IOException, SQLException, AuthorizeException {
         // Just create a SIP package for each line in manifest and put in scratch directory
-        if (manif.isEmpty()) {
+        if (manif.isEmpty() && ! manif.isOpen()) {
             manif.read();
         }
-        for (String handle : manif.entries) {
-            DSpaceObject dso = HandleManager.resolveToObject(context, handle);
+        journal = new ExportJournal(scratchDir.resolve("export.journal"), packageOptions());
+        progress = startProgress("export");
+        boolean completed = false;
+        try {
+            if (workers > 1) {
+                parallelToScratch();
+            } else {
+                HandleResolver resolver = new HandleResolver(context, RESOLVE_BATCH);
+                List<String> batch;
+                for (int i = 0; ! (batch = claimBatch(i)).isEmpty(); i += RESOLVE_BATCH) {
+                    String unresolved = exportEntries(context, resolver, batch);
+                    if (unresolved != null) {
+                        throw new IOException("Unresolvable identifier: " + unresolved);
+                    }
+                    boundCache(context);
+                }
+            }
+            completed = true;
+        } finally {
+            journal.close();
+            progress.close(completed);
+        }
+    }
+
+    // returns handles of the batch of manifest entries starting at passed index - empty if none
+    private List<String> claimBatch(int start) throws IOException {
+        List<String> batch = new ArrayList<>();
+        for (int idx = start; idx < start + RESOLVE_BATCH && manif.await(idx); idx++) {
+            batch.add(manif.handle(idx));
+        }
+        return batch;
+    }
+
+    // packages the objects with passed handles, in order, unless an earlier run already has.
+    // Returns the first handle that cannot be resolved, or null if all are resolved.
+    private String exportEntries(Context ctx, HandleResolver resolver, List<String> handles)
+            throws IOException, SQLException, AuthorizeException {
+        List<String> todo = new ArrayList<>();
+        for (String handle : handles) {
+            if (! journal.isDone(handle, getPackage(handle), verify)) {
+                todo.add(handle);
+            } else {
+                progress.skipped(handle);
+            }
+        }
+        Map<String, DSpaceObject> objects = resolver.resolve(todo);
+        for (String handle : todo) {
+            DSpaceObject dso = objects.get(handle);
             if (dso == null) {
-                bail("Unresolvable identifier: " + handle);
+                return handle;
+            }
+            // any partial package from an earlier run is overwritten
+            long start = System.nanoTime();
+            Filler filler = makePackage(ctx, dso, newFiller(handle).packageDigest(ExportJournal.CS_ALGO));
+            Path pkg = filler.toPackage();
+            long elapsed = System.nanoTime() - start;
+            long size = Files.size(pkg);
+            Metrics.record("package", elapsed, size);
+            journal.record(handle, pkg, filler.packageChecksum());
+            progress.done(handle, size, elapsed);
+        }
+        return null;
+    }
+
+    // clears the context's object cache once it exceeds the limit. Objects in use remain
+    // valid, but DSpace would otherwise cache every bundle and bitstream of every item exported
+    private void boundCache(Context ctx) {
+        if (cacheLimit > 0 && ctx.getCacheSize() > cacheLimit) {
+            ctx.clearCache();
+        }
+    }
+
+    // reports progress of passed task over the manifest, until closed
+    private ProgressReporter startProgress(String task) {
+        return new ProgressReporter(task, manif, scratchDir.resolve("progress.json"), reportInterval);
+    }
+
+    private void parallelToScratch() throws IOException, SQLException, AuthorizeException {
+        // workers pull batches of manifest entries in order from a shared cursor - since the
+        // manifest itself is not altered, export.map order is unaffected by completion order.
+        // Workers await entries the manifest builder has yet to add
+        AtomicInteger cursor = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Void>> results = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            results.add(pool.submit(new ExportWorker(cursor)));
+        }
+        pool.shutdown();
+        try {
+            for (Future<Void> result : results) {
+                result.get();
             }
-            switch (dso.getType()) {
-                case Constants.COMMUNITY: makeCommPackage((Community)dso);
-                case Constants.COLLECTION: makeCollPackage((Collection)dso);
-                case Constants.ITEM: makeItemPackage((Item)dso);
+        } catch (InterruptedException intE) {
+            throw new IOException("Export interrupted", intE);
+        } catch (ExecutionException exE) {
+            // stop remaining workers from claiming new entries
+            cursor.set(STOPPED);
+            Throwable cause = exE.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof SQLException) {
+                throw (SQLException)cause;
+            } else if (cause instanceof AuthorizeException) {
+                throw (AuthorizeException)cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            // stop any workers still exporting, and await them, before the journal and
+            // deflaters they use are closed
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException intE) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // exports manifest entries using a private DSpace context, since contexts are not thread-safe
+    private class ExportWorker implements Callable<Void> {
+
+        private final AtomicInteger cursor;
+
+        public ExportWorker(AtomicInteger cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Context ctx = new Context();
+            try {
+                HandleResolver resolver = new HandleResolver(ctx, RESOLVE_BATCH);
+                int start;
+                List<String> batch;
+                while ((start = cursor.getAndAdd(RESOLVE_BATCH)) < STOPPED && ! (batch = claimBatch(start)).isEmpty()) {
+                    String unresolved = exportEntries(ctx, resolver, batch);
+                    if (unresolved != null) {
+                        throw new IOException("Unresolvable identifier: " + unresolved);
+                    }
+                    boundCache(ctx);
+                }
+            } catch (Throwable t) {
+                cursor.set(STOPPED);
+                throw t;
+            } finally {
+                ctx.abort();
             }
+            return null;
+        }
+    }
+
+    private Filler makePackage(Context ctx, DSpaceObject dso, Filler filler) throws IOException, SQLException, AuthorizeException {
+        switch (dso.getType()) {
+            case Constants.COMMUNITY: return makeCommPackage((Community)dso, filler);
+            case Constants.COLLECTION: return makeCollPackage((Collection)dso, filler);
+            case Constants.ITEM: return makeItemPackage(ctx, (Item)dso, filler);
+            default: throw new IOException("Unexpected object type for: " + dso.getHandle());
         }
     }
 
-    public void importToMds(String targetUrl) throws IOException {
+    public void importToMds(final String targetUrl) throws IOException {
         if (manif.isEmpty()) {
             manif.read();
         }
-        Stack<String> parents = new Stack<>();
-        parents.push(null);  // indicates no parent object
-
-        for (int i = 0; i < manif.entries.size(); i++) {
-            String handle = manif.entries.get(i);
-            uploadPackage(getPackage(handle), getPostUrl(targetUrl, parents.peek(), manif.ctypes.get(i)));
-            if (i < manif.entries.size() - 1) {
-                int diff = manif.levels.get(i) - manif.levels.get(i+1);
-                if (diff < 0) {
-                    // I have kids - put myself on the parents stack
-                    parents.push(handle);
-                } else if (diff > 0) {
-                    // expose grandparents
-                    while (diff-- > 0) {
-                        parents.pop();
+        openTransport();
+        final ImportLedger ledger = openLedger(targetUrl);
+        // only parent-child edges constrain upload order - siblings may proceed concurrently
+        ImportScheduler scheduler = new ImportScheduler(manif.parents(), concurrency, false, limiter);
+        progress = startProgress("import");
+        boolean completed = false;
+        try {
+            scheduler.run(new ImportScheduler.Task() {
+                @Override
+                public String upload(int index, String parentRef) throws IOException {
+                    return uploadEntry(ledger, targetUrl, index, parentRef, getPackage(manif.handle(index)));
+                }
+            });
+            completed = true;
+        } finally {
+            ledger.close();
+            progress.close(completed);
+        }
+    }
+
+    private void pipelineToMds(final String targetUrl) throws IOException, SQLException, AuthorizeException {
+        // export workers stream packages to spool files in scratch that are deleted once uploaded,
+        // and are held back when too many packages are awaiting upload
+        openTransport();
+        final ImportLedger ledger = openLedger(targetUrl);
+        final ImportScheduler scheduler = new ImportScheduler(manif.parents(), concurrency, true, limiter);
+        final Path spoolDir = openSpool();
+        final Map<Integer, Path> packages = new ConcurrentHashMap<>();
+        final Semaphore slots = new Semaphore((queueDepth > 0) ? queueDepth : 2 * concurrency);
+        AtomicInteger cursor = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            pool.submit(new PipeWorker(cursor, slots, ledger, spoolDir, packages, scheduler));
+        }
+        pool.shutdown();
+        progress = startProgress("pipeline");
+        boolean completed = false;
+        try {
+            scheduler.run(new ImportScheduler.Task() {
+                @Override
+                public String upload(int index, String parentRef) throws IOException {
+                    Path pkg = packages.remove(index);
+                    try {
+                        return uploadEntry(ledger, targetUrl, index, parentRef, pkg);
+                    } finally {
+                        if (pkg != null) {
+                            Files.deleteIfExists(pkg);
+                            slots.release();
+                        }
                     }
-                } // if diff == 0 - next entry is a sibling, nothing to do
+                }
+            });
+            completed = true;
+        } finally {
+            // stop any workers still exporting - awaiting those finishing a package - then discard
+            // packages never uploaded, and any partially written
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException intE) {
+                Thread.currentThread().interrupt();
+            }
+            clearSpool(spoolDir);
+            ledger.close();
+            progress.close(completed);
+        }
+    }
+
+    // returns the directory pipelined packages are spooled to, emptied of any left by an earlier run
+    private Path openSpool() throws IOException {
+        Path spoolDir = scratchDir.resolve("spool");
+        Files.createDirectories(spoolDir);
+        clearSpool(spoolDir);
+        return spoolDir;
+    }
+
+    private void clearSpool(Path spoolDir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(spoolDir)) {
+            for (Path file : stream) {
+                Files.delete(file);
             }
         }
     }
 
-    private String getPostUrl(String targetUrl, String handle, int ctype) {
+    // exports manifest entries to be uploaded as soon as their parents exist
+    private class PipeWorker implements Callable<Void> {
+
+        private final AtomicInteger cursor;
+        private final Semaphore slots;
+        private final ImportLedger ledger;
+        private final Path spoolDir;
+        private final Map<Integer, Path> packages;
+        private final ImportScheduler scheduler;
+
+        public PipeWorker(AtomicInteger cursor, Semaphore slots, ImportLedger ledger, Path spoolDir,
+                          Map<Integer, Path> packages, ImportScheduler scheduler) {
+            this.cursor = cursor;
+            this.slots = slots;
+            this.ledger = ledger;
+            this.spoolDir = spoolDir;
+            this.packages = packages;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Context ctx = new Context();
+            try {
+                while (true) {
+                    // claim a queue slot before an entry, so that ancestors always
+                    // obtain slots before their descendants
+                    slots.acquire();
+                    int idx = cursor.getAndIncrement();
+                    if (idx >= manif.size()) {
+                        slots.release();
+                        break;
+                    }
+                    String handle = manif.handle(idx);
+                    if (ledger.completed(handle) == null) {
+                        DSpaceObject dso = HandleManager.resolveToObject(ctx, handle);
+                        if (dso == null) {
+                            throw new IOException("Unresolvable identifier: " + handle);
+                        }
+                        long start = Metrics.start();
+                        Filler filler = new Filler(spoolDir.resolve(handle.replaceAll("/", "-")), csAlgs, "zip")
+                                            .compression(compression).compressWith(deflaters);
+                        Path pkg = makePackage(ctx, dso, filler).toPackage();
+                        packages.put(idx, pkg);
+                        Metrics.stop("package", start, Files.size(pkg));
+                        boundCache(ctx);
+                    } else {
+                        // already loaded - nothing to export
+                        slots.release();
+                    }
+                    scheduler.ready(idx);
+                }
+            } catch (InterruptedException intE) {
+                // import has ended
+            } catch (Throwable t) {
+                // errors too, or the scheduler would await this entry forever
+                cursor.set(manif.size());
+                scheduler.fail(t);
+                throw t;
+            } finally {
+                ctx.abort();
+            }
+            return null;
+        }
+    }
+
+    private void openTransport() {
+        transport = new MdsTransport(concurrency)
+                        .connectTimeout(30 * 1000)
+                        .socketTimeout(timeout * 1000)
+                        .bufferSize(64 * 1024)
+                        .rateLimit(bandwidth);
+    }
+
+    private ImportLedger openLedger(String targetUrl) throws IOException {
+        // uploads already made to each target are recorded in its own ledger, named by digest of its URL
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            String id = Utils.toHex(md.digest(targetUrl.getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+            return new ImportLedger(scratchDir.resolve("import-" + id + ".ledger"), targetUrl);
+        } catch (NoSuchAlgorithmException nsaE) {
+            throw new IOException("No such algorithm: SHA-1");
+        }
+    }
+
+    // uploads manifest entry package unless already loaded, returning reference to the created object
+    private String uploadEntry(ImportLedger ledger, String targetUrl, int index, String parentRef,
+                               Path pkg) throws IOException {
+        String handle = manif.handle(index);
+        ImportLedger.Entry prior = ledger.completed(handle);
+        if (prior == null) {
+            long start = System.nanoTime();
+            // size from the package file itself - an entity may not know its length
+            long size = Files.size(pkg);
+            RequestEntity entity = new FileRequestEntity(pkg.toFile(), "application/zip");
+            String postUrl = getPostUrl(targetUrl, parentRef, manif.ctype(index));
+            MdsTransport.Response resp = attemptUpload(ledger, handle, entity, size, postUrl);
+            // a refused upload created nothing, so may be sent again - if it can be
+            for (int attempt = 1; resp.isRefused() && entity.isRepeatable() && attempt < UPLOAD_ATTEMPTS; attempt++) {
+                backoff(resp, attempt);
+                Metrics.count("upload.retry", 1L);
+                resp = attemptUpload(ledger, handle, entity, size, postUrl);
+            }
+            if (! resp.isSuccess()) {
+                throw new IOException("Upload of " + handle + " failed with status: " + resp.status);
+            }
+            progress.done(handle, size, System.nanoTime() - start);
+            prior = ledger.completed(handle);
+        } else {
+            progress.skipped(handle);
+        }
+        // children are posted to the created object where known
+        return (prior.location != null) ? prior.location : handle;
+    }
+
+    private String getPostUrl(String targetUrl, String parentRef, int ctype) {
         // NB: these URLs are a bit fragile - really should be queried from REST API
+        String pkgName = "package/" + Constants.typeText[ctype] + "-sip";
+        if (parentRef != null && parentRef.contains("://")) {
+            // parent reference is the location of the created parent object
+            return parentRef.endsWith("/") ? parentRef + pkgName : parentRef + "/" + pkgName;
+        }
         String baseUrl = targetUrl;
         if (! baseUrl.endsWith("/")) {
             baseUrl += "/";
         }
-        String pkgName = "package/" + Constants.typeText[ctype] + "-sip";
-        return (handle != null) ? baseUrl + handle + pkgName: baseUrl + pkgName;
+        return (parentRef != null) ? baseUrl + parentRef + pkgName: baseUrl + pkgName;
     }
 
     private Path getPackage(String handle) {
         return scratchDir.resolve(handle.replaceAll("/", "-") + ".zip");
     }
 
+    // options which shape package contents - packages built under others are not reused
+    private String packageOptions() {
+        return "algorithms=" + ((csAlgs != null) ? csAlgs : "default") + " compression=" + compression.level() +
+               " dedup=" + ((contentUrl != null) ? contentUrl : "none");
+    }
+
+    private Filler newFiller(String handle) throws IOException {
+        // stream SIP straight into its package file - no bag directory is staged
+        return new Filler(scratchDir.resolve(handle.replaceAll("/", "-")), csAlgs, "zip").compression(compression).compressWith(deflaters);
+    }
+
     private static final String[] commFields = {
         "name",
         "short_description",
@@ -261,8 +915,7 @@ public class Modernize {
         "side_bar_text"
     };
 
-    private Path makeCommPackage(Community comm) throws IOException, SQLException, AuthorizeException {
-        Filler filler = new Filler(scratchDir.resolve(comm.getHandle().replaceAll("/", "-")));
+    private Filler makeCommPackage(Community comm, Filler filler) throws IOException, SQLException, AuthorizeException {
         filler.metadata(BAG_TYPE, "SIP");
         filler.property("data/object", OBJECT_TYPE, "community");
         filler.property("data/object", OBJECT_ID, comm.getHandle());
@@ -287,7 +940,7 @@ public class Modernize {
         if (logo != null) {
             filler.payload("logo", logo.retrieve());
         }
-        return filler.toPackage();
+        return filler;
     }
 
     private static final String[] collFields = {
@@ -300,8 +953,7 @@ public class Modernize {
         "side_bar_text"
     };
 
-    private Path makeCollPackage(Collection coll) throws IOException, SQLException, AuthorizeException {
-        Filler filler = new Filler(scratchDir.resolve(coll.getHandle().replaceAll("/", "-")));
+    private Filler makeCollPackage(Collection coll, Filler filler) throws IOException, SQLException, AuthorizeException {
         filler.metadata(BAG_TYPE, "SIP");
         filler.property("data/object", OBJECT_TYPE, "collection");
         filler.property("data/object", OBJECT_ID, coll.getHandle());
@@ -326,11 +978,10 @@ public class Modernize {
         if (logo != null) {
             filler.payload("logo", logo.retrieve());
         }
-        return filler.toPackage();
+        return filler;
     }
 
-    private Path makeItemPackage(Item item) throws IOException, SQLException, AuthorizeException {
-        Filler filler = new Filler(scratchDir.resolve(item.getHandle().replaceAll("/", "-")));
+    private Filler makeItemPackage(Context ctx, Item item, Filler filler) throws IOException, SQLException, AuthorizeException {
         filler.metadata(BAG_TYPE, "SIP");
         filler.property("data/object", OBJECT_TYPE, "item");
         filler.property("data/object", OBJECT_ID, item.getHandle());
@@ -352,6 +1003,8 @@ public class Modernize {
         }
         // metadata
         BagUtils.writeMetadata(item, filler.payloadStream("metadata.xml"));
+        // assetstore files of all the item's bitstreams, found at once
+        Map<Integer, Path> assetFiles = assets.locate(ctx, item);
         // proceed to bundles, in sub-directories, excluding bundles with derivatives
         for (Bundle bundle : item.getBundles()) {
             if (! "TEXT".equals(bundle.getName())) {
@@ -375,108 +1028,96 @@ public class Modernize {
                     }
                     writer.endStanza();
                     writer.close();
-                    // add bytes to bag
-                    filler.payload(relPath + seqId, bs.retrieve());
+                    // add bytes to bag - or a reference to them, if shared with other items
+                    if (store != null && store.isShared(bs)) {
+                        filler.payloadRef(relPath + seqId, bs.getSize(), store.url(bs), store.put(bs));
+                    } else {
+                        // read file directly from assetstore if possible, trusting recorded checksum
+                        Path assetFile = assetFiles.get(bs.getID());
+                        if (assetFile != null) {
+                            filler.payload(relPath + seqId, assetFile, bs.getFormat().getMIMEType(), AssetStore.checksums(bs));
+                        } else {
+                            filler.payload(relPath + seqId, bs.retrieve(), bs.getFormat().getMIMEType());
+                        }
+                    }
                 }
             }
         }
-        return filler.toPackage();
+        return filler;
     }
 
-    private void uploadPackage(Path pkg, String targetUri) throws IOException {
-        // using older Apache http client library to make compatible with more systems
-        PostMethod post = new PostMethod(targetUri);
-        HttpClient client = new HttpClient();
-        RequestEntity entity = new FileRequestEntity(pkg.toFile(), "application/zip");
-        post.setRequestEntity(entity);
+    // uploads a package once, recording the outcome in the ledger - whether a response or a transport failure
+    private MdsTransport.Response attemptUpload(ImportLedger ledger, String handle, RequestEntity entity, long size,
+                                                String postUrl) throws IOException {
+        long start = System.currentTimeMillis();
+        MdsTransport.Response resp;
         try {
-            int result = client.executeMethod(post);
-        } finally {
-            post.releaseConnection();
+            resp = uploadPackage(entity, size, postUrl);
+        } catch (IOException ioE) {
+            ledger.recordError(handle, System.currentTimeMillis() - start);
+            throw ioE;
         }
+        ledger.record(handle, resp);
+        return resp;
     }
 
-    private void finish() throws SQLException {
-        context.abort();
-    }
-
-    // map of content subtree - serialized as YAML file
-    private class ExportManifest {
-
-        List<String> entries = new ArrayList<>();
-        List<Integer> ctypes = new ArrayList<>();
-        List<Integer> levels = new ArrayList<>();
-        Path exportMap;
-
-        public ExportManifest() throws IOException {
-            exportMap = scratchDir.resolve("export.map");
-        }
-
-        public boolean isEmpty() {
-            return (entries.size() == 0);
+    // waits before retrying a refused upload - as long as the target asked, or exponentially longer with each attempt
+    private void backoff(MdsTransport.Response resp, int attempt) throws IOException {
+        long wait = (resp.retryAfter >= 0) ? Math.min(resp.retryAfter, MAX_BACKOFF) * 1000L
+                                           : Math.min(1000L << attempt, MAX_BACKOFF * 1000L);
+        try {
+            // spread retries of uploads refused together
+            Thread.sleep(wait + (long)(Math.random() * wait / 4));
+        } catch (InterruptedException intE) {
+            throw new InterruptedIOException("Upload interrupted");
         }
+    }
 
-        public int addParents(Stack<Community> parents) throws IOException {
-            int level = 0;
-            if (! parents.empty()) {
-                Community parent = parents.pop();
-                while (parent != null) {
-                    addHandle(parent.getHandle(), level++, Constants.COMMUNITY);
-                    parent = parents.pop();
+    private MdsTransport.Response uploadPackage(RequestEntity entity, long size, String targetUri) throws IOException {
+        long start = Metrics.start();
+        try {
+            MdsTransport.Response resp = transport.post(targetUri, entity);
+            Metrics.count("http." + resp.status, 1L);
+            if (limiter != null) {
+                if (resp.isOverload()) {
+                    limiter.overload();
+                } else if (resp.isSuccess()) {
+                    limiter.success(resp.latency, size);
                 }
             }
-            return level;
-        }
-
-        public void addCommunity(Community comm, int level) throws IOException, SQLException {
-            addHandle(comm.getHandle(), level, Constants.COMMUNITY);
-            for (Community subComm : comm.getSubcommunities()) {
-                addCommunity(subComm, level + 1);
-            }
-            for (Collection coll : comm.getCollections()) {
-                addCollection(coll, level + 1);
+            return resp;
+        } catch (InterruptedIOException iioE) {
+            // socket and connect timeouts
+            Metrics.count("http.timeout", 1L);
+            if (limiter != null) {
+                limiter.overload();
             }
+            throw iioE;
+        } catch (IOException ioE) {
+            Metrics.count("http.error", 1L);
+            throw ioE;
+        } finally {
+            Metrics.stop("upload", start, size);
         }
+    }
 
-        public void addCollection(Collection coll, int level) throws IOException, SQLException {
-            addHandle(coll.getHandle(), level, Constants.COLLECTION);
-            ItemIterator iiter = coll.getItems();
-            while(iiter.hasNext()) {
-                addHandle(iiter.next().getHandle(), level + 1, Constants.ITEM);
+    private void finish() throws SQLException {
+        if (transport != null) {
+            transport.close();
+            if (limiter != null) {
+                System.out.println("Upload concurrency ended at " + limiter.limit() + " (maximum " + limiter.maxLimit() + ")");
             }
-            iiter.close();
         }
-
-        public void write() throws IOException {
-            try (BufferedWriter writer = Files.newBufferedWriter(exportMap, StandardCharsets.UTF_8)) {
-                int lineNo = 0;
-                for (String entry : entries) {
-                    writer.write(levels.get(lineNo));
-                    writer.write(" ");
-                    writer.write(ctypes.get(lineNo));
-                    writer.write(" ");
-                    writer.write(entry);
-                    writer.newLine();
-                    ++lineNo;
-                }
-            }
+        if (deflaters != null) {
+            deflaters.shutdownNow();
         }
-
-        public void read() throws IOException {
-            try (Scanner scanner = new Scanner(exportMap, StandardCharsets.UTF_8.name())) {
-                while (scanner.hasNextLine()) {
-                    levels.add(scanner.nextInt());
-                    ctypes.add(scanner.nextInt());
-                    entries.add(scanner.next());
-                    scanner.nextLine();
-                }
-            }
-        }
-
-        private void addHandle(String handle, int level, int ctype) throws IOException {
-            levels.add(level);
-            ctypes.add(ctype);
-            entries.add(handle);
+        context.abort();
+        // keep a report of each run
+        Path report = scratchDir.resolve("metrics-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        try {
+            metrics.writeReport(report);
+        } catch (IOException ioE) {
+            System.out.println("Unable to write metrics report: " + ioE.getMessage());
         }
     }
 }
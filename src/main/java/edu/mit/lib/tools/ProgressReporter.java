@@ -0,0 +1,277 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ProgressReporter reports the progress of a long-running task over the entries
+ * of an export manifest: objects and bytes done against the manifest total,
+ * throughput over a moving window (and overall), an estimated time of completion,
+ * and the slowest objects seen. Reports are printed to the console at a fixed
+ * interval, and a status file (JSON) is rewritten with each, so that a run may
+ * also be watched by other tools. Entries skipped, because an earlier run completed
+ * them, count toward progress but not throughput. While the manifest is still being
+ * built, its total (and so the estimate) is a lower bound. Reporting is thread-safe.
+ *
+ * @author richardrodgers
+ */
+
+public class ProgressReporter {
+
+    // number of slowest objects reported
+    private static final int SLOWEST = 10;
+    // number of reports spanned by the moving window
+    private static final int WINDOW = 10;
+
+    private final String task;
+    private final ExportManifest manif;
+    private final Path statusFile;
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    // slowest objects, slowest last - a min-heap on time
+    private final PriorityQueue<Slow> slowest = new PriorityQueue<>(SLOWEST, new Comparator<Slow>() {
+        @Override
+        public int compare(Slow s1, Slow s2) {
+            return Long.compare(s1.nanos, s2.nanos);
+        }
+    });
+    // time an object must exceed to be among the slowest
+    private volatile long slowFloor = 0L;
+    // samples of progress at each report, oldest first, for the moving window
+    private final List<Sample> samples = new ArrayList<>();
+    private final ScheduledExecutorService ticker;
+    private final long started = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private boolean statusFailed = false;
+
+    /**
+     * Returns a new reporter, reporting every interval seconds until closed.
+     *
+     * @param task the task name, e.g. 'export'
+     * @param manif the manifest whose entries the task processes
+     * @param statusFile the status file, rewritten with each report
+     * @param interval the number of seconds between reports
+     */
+    public ProgressReporter(String task, ExportManifest manif, Path statusFile, int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Report interval must be at least 1 second");
+        }
+        this.task = task;
+        this.manif = manif;
+        this.statusFile = statusFile;
+        samples.add(new Sample(startNanos, 0L, 0L));
+        ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "progress-" + ProgressReporter.this.task);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report("running");
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records an object processed.
+     *
+     * @param handle the object handle
+     * @param size the number of bytes processed, or 0 if not known
+     * @param nanos the time taken, in nanoseconds
+     */
+    public void done(String handle, long size, long nanos) {
+        done.incrementAndGet();
+        bytes.addAndGet(size);
+        if (nanos > slowFloor) {
+            synchronized (slowest) {
+                slowest.add(new Slow(handle, size, nanos));
+                if (slowest.size() > SLOWEST) {
+                    slowest.poll();
+                }
+                if (slowest.size() == SLOWEST) {
+                    slowFloor = slowest.peek().nanos;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records an object skipped, since an earlier run completed it.
+     *
+     * @param handle the object handle
+     */
+    public void skipped(String handle) {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Stops reporting, after a final report.
+     *
+     * @param completed true if the task completed, false if it stopped early
+     */
+    public void close(boolean completed) {
+        ticker.shutdownNow();
+        report(completed ? "completed" : "stopped");
+    }
+
+    private synchronized void report(String state) {
+        long now = System.nanoTime();
+        long nDone = done.get();
+        long nBytes = bytes.get();
+        samples.add(new Sample(now, nDone, nBytes));
+        if (samples.size() > WINDOW + 1) {
+            samples.remove(0);
+        }
+        Sample first = samples.get(0);
+        double windowSecs = (now - first.nanos) / 1e9;
+        double rate = (windowSecs > 0.0) ? (nDone - first.done) / windowSecs : 0.0;
+        double mbRate = (windowSecs > 0.0) ? (nBytes - first.bytes) / 1048576.0 / windowSecs : 0.0;
+        double elapsedSecs = (now - startNanos) / 1e9;
+        long total = manif.size();
+        boolean growing = manif.isOpen();
+        long finished = nDone + skipped.get();
+        long remaining = Math.max(total - finished, 0L);
+        // no estimate until some objects have been processed in the window
+        long etaSecs = (remaining == 0L) ? 0L : (rate > 0.0) ? (long)Math.ceil(remaining / rate) : -1L;
+        Runtime rt = Runtime.getRuntime();
+        long heapUsed = rt.totalMemory() - rt.freeMemory();
+
+        StringBuilder line = new StringBuilder();
+        line.append(String.format(Locale.ROOT, "%s %s: %d of %d%s objects (%.1f%%), %d skipped, %d MB; %.1f objects/s, %.2f MB/s over last %s",
+                    task, state, finished, total, growing ? "+" : "", (total > 0L) ? 100.0 * finished / total : 0.0,
+                    skipped.get(), nBytes >> 20, rate, mbRate, duration((long)windowSecs)));
+        if (etaSecs > 0L) {
+            line.append("; ETA ").append(growing ? "at least " : "").append(duration(etaSecs))
+                .append(" (").append(timestamp(System.currentTimeMillis() + etaSecs * 1000L)).append(")");
+        }
+        line.append(String.format("; heap %d of %d MB", heapUsed >> 20, rt.maxMemory() >> 20));
+        System.out.println(line.toString());
+
+        List<Slow> slow = slowest();
+        if (! "running".equals(state) && ! slow.isEmpty()) {
+            System.out.println("Slowest objects:");
+            for (Slow s : slow) {
+                System.out.println(String.format(Locale.ROOT, "  %s: %.1f s, %d KB", s.handle, s.nanos / 1e9, s.size >> 10));
+            }
+        }
+        writeStatus(state, total, growing, finished, nBytes, elapsedSecs, rate, mbRate, windowSecs, etaSecs, slow);
+    }
+
+    private void writeStatus(String state, long total, boolean growing, long finished, long nBytes, double elapsedSecs,
+                             double rate, double mbRate, double windowSecs, long etaSecs, List<Slow> slow) {
+        // written aside and moved into place, so readers never see a partial status
+        Path tmpFile = statusFile.resolveSibling(statusFile.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+                writer.write("{\n  \"task\": \"" + task + "\",\n  \"state\": \"" + state + "\",\n");
+                writer.write("  \"started\": \"" + timestamp(started) + "\",\n");
+                writer.write("  \"updated\": \"" + timestamp(System.currentTimeMillis()) + "\",\n");
+                writer.write("  \"elapsedSecs\": " + (long)elapsedSecs + ",\n");
+                writer.write("  \"total\": " + total + ",\n  \"totalFinal\": " + ! growing + ",\n");
+                writer.write("  \"done\": " + finished + ",\n  \"skipped\": " + skipped.get() + ",\n");
+                writer.write("  \"bytes\": " + nBytes + ",\n");
+                writer.write(String.format(Locale.ROOT, "  \"window\": {\"secs\": %d, \"objectsPerSec\": %.3f, \"mbPerSec\": %.3f},\n",
+                                           (long)windowSecs, rate, mbRate));
+                writer.write(String.format(Locale.ROOT, "  \"overall\": {\"objectsPerSec\": %.3f, \"mbPerSec\": %.3f},\n",
+                                           (elapsedSecs > 0.0) ? done.get() / elapsedSecs : 0.0,
+                                           (elapsedSecs > 0.0) ? nBytes / 1048576.0 / elapsedSecs : 0.0));
+                if (etaSecs >= 0L) {
+                    writer.write("  \"etaSecs\": " + etaSecs + ",\n");
+                    writer.write("  \"eta\": \"" + timestamp(System.currentTimeMillis() + etaSecs * 1000L) + "\",\n");
+                }
+                writer.write("  \"slowest\": [");
+                String sep = "\n";
+                for (Slow s : slow) {
+                    writer.write(String.format(Locale.ROOT, "%s    {\"handle\": \"%s\", \"secs\": %.3f, \"bytes\": %d}",
+                                               sep, s.handle, s.nanos / 1e9, s.size));
+                    sep = ",\n";
+                }
+                writer.write(slow.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+            }
+            Files.move(tmpFile, statusFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioE) {
+            // status file is a convenience - report, once, and carry on
+            if (! statusFailed) {
+                statusFailed = true;
+                System.out.println("Unable to write status file: " + ioE.getMessage());
+            }
+        }
+    }
+
+    // slowest objects, slowest first
+    private List<Slow> slowest() {
+        List<Slow> slow;
+        synchronized (slowest) {
+            slow = new ArrayList<>(slowest);
+        }
+        Collections.sort(slow, Collections.reverseOrder(slowest.comparator()));
+        return slow;
+    }
+
+    private static String duration(long secs) {
+        if (secs >= 86400L) {
+            return String.format("%dd %dh", secs / 86400L, (secs % 86400L) / 3600L);
+        } else if (secs >= 3600L) {
+            return String.format("%dh %dm", secs / 3600L, (secs % 3600L) / 60L);
+        } else if (secs >= 60L) {
+            return String.format("%dm %ds", secs / 60L, secs % 60L);
+        }
+        return secs + "s";
+    }
+
+    private static String timestamp(long millis) {
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date(millis));
+    }
+
+    // progress at a report
+    private static class Sample {
+        final long nanos;
+        final long done;
+        final long bytes;
+
+        Sample(long nanos, long done, long bytes) {
+            this.nanos = nanos;
+            this.done = done;
+            this.bytes = bytes;
+        }
+    }
+
+    // an object among the slowest
+    private static class Slow {
+        final String handle;
+        final long size;
+        final long nanos;
+
+        Slow(String handle, long size, long nanos) {
+            this.handle = handle;
+            this.size = size;
+            this.nanos = nanos;
+        }
+    }
+}
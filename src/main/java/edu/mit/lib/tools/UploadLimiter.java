@@ -0,0 +1,133 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+package edu.mit.lib.tools;
+
+import java.util.Arrays;
+
+import edu.mit.lib.bagit.Metrics;
+
+/**
+ * UploadLimiter adapts the number of concurrent uploads to what the target
+ * sustains, in the manner of TCP congestion control (additive increase,
+ * multiplicative decrease). The limit starts at 1 and doubles with each round
+ * of successful uploads (slow start), until the first sign of congestion; it is
+ * then halved, and thereafter grows by one per round while uploads go well.
+ * Congestion is signalled by overload responses (429, 5xx), timeouts, and rising
+ * latency: each upload's latency, per MB sent, is compared with the best seen for
+ * packages of similar size (within a factor of two), since per MB latency is far
+ * lower for large packages than small; the ratio is smoothed over all uploads, and
+ * the limit is cut when latency has grown several-fold. The limit is
+ * cut at most once per round, since uploads in flight when it is cut still report
+ * the congestion that caused it. Thread-safe.
+ *
+ * @author richardrodgers
+ */
+
+public class UploadLimiter {
+
+    // smoothed latency, relative to baselines, that signals congestion
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // weight of each new sample in smoothed latency
+    private static final double SMOOTHING = 0.2;
+    // fraction of the gap to each higher sample a baseline rises, so it tracks a slowing target
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final int maxLimit;
+    private int limit = 1;
+    // limit at which slow start ends
+    private int threshold;
+    // successes since limit last grew
+    private int successes = 0;
+    // completions to await before the limit may be cut again
+    private int holdOff = 0;
+    // best latency seen in milliseconds per MB (plus one) sent, by size class - log2 of bytes sent
+    private final double[] baselines = new double[Long.SIZE + 1];
+    // smoothed ratio of latency to baseline
+    private double smoothed = 1.0;
+
+    /**
+     * Returns a new limiter, which never allows more than passed number of uploads.
+     *
+     * @param maxLimit the maximum number of concurrent uploads
+     */
+    public UploadLimiter(int maxLimit) {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("Maximum concurrency must be at least 1");
+        }
+        this.maxLimit = maxLimit;
+        threshold = maxLimit;
+        Arrays.fill(baselines, -1.0);
+    }
+
+    /**
+     * Returns the number of uploads currently allowed in flight.
+     *
+     * @return limit the concurrency limit
+     */
+    public synchronized int limit() {
+        return limit;
+    }
+
+    /**
+     * Returns the maximum number of uploads ever allowed in flight.
+     *
+     * @return maxLimit the maximum concurrency
+     */
+    public int maxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Records a successful upload.
+     *
+     * @param latency the response time in milliseconds
+     * @param bytes the number of bytes sent, or 0 if not known
+     */
+    public synchronized void success(long latency, long bytes) {
+        holdOff = Math.max(holdOff - 1, 0);
+        // normalize for package size, since large packages take longer regardless - but not in
+        // proportion, so compare only with packages of similar size
+        double sample = Math.max(latency, 1L) / (1.0 + bytes / 1048576.0);
+        int sizeClass = Long.SIZE - Long.numberOfLeadingZeros(Math.max(bytes, 0L));
+        double baseline = baselines[sizeClass];
+        if (baseline < 0.0) {
+            // first of its size - nothing to compare with
+            baselines[sizeClass] = sample;
+        } else {
+            smoothed += SMOOTHING * (sample / baseline - smoothed);
+            baselines[sizeClass] = (sample < baseline) ? sample : baseline + BASELINE_DRIFT * (sample - baseline);
+        }
+        if (smoothed > LATENCY_TOLERANCE) {
+            cut();
+        } else if (limit < threshold) {
+            // slow start
+            limit = Math.min(limit + 1, maxLimit);
+        } else if (++successes >= limit) {
+            successes = 0;
+            limit = Math.min(limit + 1, maxLimit);
+        }
+    }
+
+    /**
+     * Records an upload the target refused or failed to answer, because overloaded.
+     */
+    public synchronized void overload() {
+        holdOff = Math.max(holdOff - 1, 0);
+        cut();
+    }
+
+    private void cut() {
+        // only once per round of uploads - those in flight when cut report the same congestion
+        if (holdOff > 0) {
+            return;
+        }
+        holdOff = limit;
+        threshold = limit = Math.max(limit / 2, 1);
+        Metrics.count("upload.cut", 1L);
+        successes = 0;
+        // renew the smoothed latency, so the cut has a round to take effect
+        smoothed = 1.0;
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips of ParallelGzipOutputStream output through GZIPInputStream,
+ * compressing on the writing thread and in a pool, at several levels.
+ *
+ * @author richardrodgers
+ */
+
+public class ParallelGzipOutputStreamTest {
+
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void emptyStream() throws IOException {
+        assertArrayEquals(new byte[0], roundTrip(new byte[0], pool, Deflater.DEFAULT_COMPRESSION, 1));
+    }
+
+    @Test
+    public void singleBlock() throws IOException {
+        byte[] data = TestData.text(1000);
+        assertArrayEquals(data, roundTrip(data, null, Deflater.DEFAULT_COMPRESSION, 1000));
+        assertArrayEquals(data, roundTrip(data, pool, Deflater.DEFAULT_COMPRESSION, 1000));
+    }
+
+    @Test
+    public void manyBlocksOnWritingThread() throws IOException {
+        byte[] data = TestData.text(7 * ParallelDeflater.BLOCK_SIZE + 3);
+        assertArrayEquals(data, roundTrip(data, null, Deflater.DEFAULT_COMPRESSION, 4096));
+    }
+
+    @Test
+    public void manyBlocksInPool() throws IOException {
+        // more blocks than may be in flight at once
+        byte[] data = TestData.text((ParallelDeflater.WINDOW + 5) * ParallelDeflater.BLOCK_SIZE);
+        for (int level : new int[] {Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION}) {
+            assertArrayEquals("level " + level, data, roundTrip(data, pool, level, 65537));
+        }
+    }
+
+    @Test
+    public void incompressible() throws IOException {
+        byte[] data = TestData.random(3 * ParallelDeflater.BLOCK_SIZE + 1);
+        assertArrayEquals(data, roundTrip(data, pool, Deflater.DEFAULT_COMPRESSION, 10000));
+    }
+
+    @Test
+    public void singleByteWrites() throws IOException {
+        byte[] data = TestData.text(ParallelDeflater.BLOCK_SIZE + 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gout = new ParallelGzipOutputStream(out, pool, Deflater.DEFAULT_COMPRESSION)) {
+            for (byte b : data) {
+                gout.write(b);
+            }
+        }
+        assertArrayEquals(data, TestData.read(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+    }
+
+    // compresses data in writes of passed size, and decompresses the result
+    private static byte[] roundTrip(byte[] data, ExecutorService pool, int level, int writeSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gout = new ParallelGzipOutputStream(out, pool, level)) {
+            for (int off = 0; off < data.length; off += writeSize) {
+                gout.write(data, off, Math.min(writeSize, data.length - off));
+            }
+        }
+        try (GZIPInputStream gin = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            return TestData.read(gin);
+        }
+    }
+}
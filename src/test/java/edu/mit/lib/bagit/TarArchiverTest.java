@@ -0,0 +1,109 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips of TarArchiver output through TarReader, for names that fit
+ * the ustar name field, need its prefix field, or need a GNU long name entry.
+ *
+ * @author richardrodgers
+ */
+
+public class TarArchiverTest {
+
+    @Test
+    public void roundTrip() throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("bag/bagit.txt", TestData.text(20));
+        contents.put("bag/data/empty.txt", new byte[0]);
+        // exactly a record, and a record and a byte - no padding, and almost a record of it
+        contents.put("bag/data/record.txt", TestData.text(512));
+        contents.put("bag/data/record1.txt", TestData.text(513));
+        contents.put("bag/data/large.bin", TestData.random(100000));
+        // too long for the name field, but splits into prefix and name
+        contents.put("bag/data/" + repeat("dir/", 30) + "split.txt", TestData.text(700));
+        // last component alone too long for the name field
+        contents.put("bag/data/" + repeat("long", 30) + ".txt", TestData.text(300));
+        // too long for prefix and name together
+        contents.put("bag/data/" + repeat("directory/", 40) + "deep.txt", TestData.text(10));
+        contents.put("bag/data/na\u00efve r\u00e9sum\u00e9.txt", TestData.text(50));
+        TarReader reader = new TarReader(new ByteArrayInputStream(write(contents)));
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            assertEquals(entry.getKey(), reader.next());
+            assertArrayEquals(entry.getKey(), entry.getValue(), TestData.read(reader.entry()));
+        }
+        assertNull(reader.next());
+    }
+
+    @Test
+    public void skipUnreadEntries() throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("bag/a.bin", TestData.random(1500));
+        contents.put("bag/b.txt", TestData.text(10));
+        contents.put("bag/" + repeat("c", 120), TestData.random(2000));
+        contents.put("bag/d.txt", TestData.text(600));
+        TarReader reader = new TarReader(new ByteArrayInputStream(write(contents)));
+        assertEquals("bag/a.bin", reader.next());
+        // read part only
+        assertEquals(contents.get("bag/a.bin")[0], (byte)reader.entry().read());
+        assertEquals("bag/b.txt", reader.next());
+        assertEquals("bag/" + repeat("c", 120), reader.next());
+        assertEquals("bag/d.txt", reader.next());
+        assertArrayEquals(contents.get("bag/d.txt"), TestData.read(reader.entry()));
+        assertNull(reader.next());
+    }
+
+    @Test(expected = IOException.class)
+    public void contentsExceedSize() throws IOException {
+        TarArchiver archiver = new TarArchiver(new ByteArrayOutputStream());
+        archiver.putEntry("a.txt", 10);
+        archiver.write(new byte[11], 0, 11);
+    }
+
+    @Test(expected = IOException.class)
+    public void contentsShortOfSize() throws IOException {
+        TarArchiver archiver = new TarArchiver(new ByteArrayOutputStream());
+        archiver.putEntry("a.txt", 10);
+        archiver.write(new byte[9], 0, 9);
+        archiver.closeEntry();
+    }
+
+    private static byte[] write(Map<String, byte[]> contents) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TarArchiver archiver = new TarArchiver(out)) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                byte[] data = entry.getValue();
+                archiver.putEntry(entry.getKey(), data.length);
+                // uneven writes
+                for (int off = 0; off < data.length; off += 333) {
+                    archiver.write(data, off, Math.min(333, data.length - off));
+                }
+                archiver.closeEntry();
+            }
+        }
+        byte[] tar = out.toByteArray();
+        assertEquals("archive is whole records", 0, tar.length % 512);
+        return tar;
+    }
+
+    private static String repeat(String str, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(str);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * TestData supplies content for tests of the archive formats, generated from
+ * a fixed seed so that failures are reproducible, and reads it back.
+ *
+ * @author richardrodgers
+ */
+
+class TestData {
+
+    private static final String[] WORDS = {
+        "bag", "item", "manifest", "payload", "the", "of", "and", "\n"
+    };
+
+    /**
+     * Returns text-like content, which deflates well.
+     *
+     * @param size the content size in bytes
+     * @return content the content
+     */
+    static byte[] text(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder(size + 16);
+        while (sb.length() < size) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        return Arrays.copyOf(sb.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+
+    /**
+     * Returns random content, which does not deflate.
+     *
+     * @param size the content size in bytes
+     * @return content the content
+     */
+    static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * Returns the CRC-32 of passed content.
+     *
+     * @param data the content
+     * @return crc the CRC-32 value
+     */
+    static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Reads passed stream to its end.
+     *
+     * @param in the stream
+     * @return content the content read
+     */
+    static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int num = 0;
+        while ((num = in.read(buf)) != -1) {
+            out.write(buf, 0, num);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2014 MIT Libraries
+ * Licensed under: http://www.apache.org/licenses/LICENSE-2.0
+ */
+
+package edu.mit.lib.bagit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round-trips of ZipArchiver output through the JDK zip readers: both
+ * ZipFile, which reads the central directory, and ZipInputStream, which
+ * reads local headers and data descriptors in stream order.
+ *
+ * @author richardrodgers
+ */
+
+public class ZipArchiverTest {
+
+    private static final long FOUR_GB = 4L * 1024 * 1024 * 1024;
+
+    private Path workDir;
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("ziptest");
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        pool.shutdownNow();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(workDir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(workDir);
+    }
+
+    @Test
+    public void roundTripOnWritingThread() throws IOException {
+        roundTrip(null);
+    }
+
+    @Test
+    public void roundTripInPool() throws IOException {
+        roundTrip(pool);
+    }
+
+    @Test
+    public void emptyArchive() throws IOException {
+        Path zip = workDir.resolve("empty.zip");
+        new ZipArchiver(Files.newOutputStream(zip), pool).close();
+        try (ZipFile zf = new ZipFile(zip.toFile())) {
+            assertEquals(0, zf.size());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void duplicateEntry() throws IOException {
+        try (ZipArchiver archiver = new ZipArchiver(new ByteArrayOutputStream(), null)) {
+            archiver.putEntry("a.txt", Deflater.DEFAULT_COMPRESSION);
+            archiver.closeEntry();
+            archiver.putEntry("a.txt", Deflater.DEFAULT_COMPRESSION);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void storedEntryMismatch() throws IOException {
+        byte[] data = TestData.text(1000);
+        try (ZipArchiver archiver = new ZipArchiver(new ByteArrayOutputStream(), null)) {
+            archiver.putStoredEntry("a.txt", data.length + 1, TestData.crc(data));
+            archiver.write(data, 0, data.length);
+            archiver.closeEntry();
+        }
+    }
+
+    @Test
+    public void zip64Entry() throws IOException {
+        // zeros deflate a thousand-fold, so the archive itself stays small
+        long size = FOUR_GB + 1234567L;
+        byte[] zeros = new byte[1024 * 1024];
+        Path zip = workDir.resolve("zip64.zip");
+        byte[] after = TestData.text(5000);
+        try (ZipArchiver archiver = new ZipArchiver(Files.newOutputStream(zip), pool)) {
+            archiver.putEntry("big.bin", Deflater.BEST_SPEED);
+            for (long left = size; left > 0L; left -= zeros.length) {
+                archiver.write(zeros, 0, (int)Math.min(left, zeros.length));
+            }
+            archiver.closeEntry();
+            archiver.putEntry("after.txt", Deflater.DEFAULT_COMPRESSION);
+            archiver.write(after, 0, after.length);
+            archiver.closeEntry();
+        }
+        CRC32 crc = new CRC32();
+        for (long left = size; left > 0L; left -= zeros.length) {
+            crc.update(zeros, 0, (int)Math.min(left, zeros.length));
+        }
+        try (ZipFile zf = new ZipFile(zip.toFile())) {
+            ZipEntry big = zf.getEntry("big.bin");
+            assertEquals(size, big.getSize());
+            assertEquals(crc.getValue(), big.getCrc());
+            assertArrayEquals(after, TestData.read(zf.getInputStream(zf.getEntry("after.txt"))));
+        }
+        // stream reader must take sizes from the zip64 data descriptor to find the next entry
+        try (ZipInputStream zin = new ZipInputStream(Files.newInputStream(zip))) {
+            assertEquals("big.bin", zin.getNextEntry().getName());
+            assertEquals(size, count(zin));
+            assertEquals("after.txt", zin.getNextEntry().getName());
+            assertArrayEquals(after, TestData.read(zin));
+            assertNull(zin.getNextEntry());
+        }
+    }
+
+    private void roundTrip(ExecutorService executor) throws IOException {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("bagit.txt", "BagIt-Version: 0.97\n".getBytes(StandardCharsets.UTF_8));
+        contents.put("data/empty.txt", new byte[0]);
+        // several compression blocks, so several in flight at once
+        contents.put("data/large.txt", TestData.text(5 * ParallelDeflater.BLOCK_SIZE + 17));
+        contents.put("data/exact.txt", TestData.text(ParallelDeflater.BLOCK_SIZE));
+        contents.put("data/random.bin", TestData.random(3 * ParallelDeflater.BLOCK_SIZE + 5));
+        contents.put("data/stored.jpg", TestData.random(70000));
+        contents.put("data/na\u00efve r\u00e9sum\u00e9.txt", TestData.text(300));
+        Path zip = workDir.resolve("bag.zip");
+        try (ZipArchiver archiver = new ZipArchiver(Files.newOutputStream(zip), executor)) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                byte[] data = entry.getValue();
+                if (entry.getKey().endsWith(".jpg")) {
+                    archiver.putStoredEntry(entry.getKey(), data.length, TestData.crc(data));
+                } else {
+                    archiver.putEntry(entry.getKey(), Deflater.DEFAULT_COMPRESSION);
+                }
+                // uneven writes, so blocks fill across write boundaries
+                for (int off = 0; off < data.length; off += 7919) {
+                    archiver.write(data, off, Math.min(7919, data.length - off));
+                }
+                archiver.closeEntry();
+            }
+        }
+        try (ZipFile zf = new ZipFile(zip.toFile())) {
+            assertEquals(contents.size(), zf.size());
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                ZipEntry ze = zf.getEntry(entry.getKey());
+                assertNotNull(entry.getKey(), ze);
+                assertEquals(entry.getKey().endsWith(".jpg") ? ZipEntry.STORED : ZipEntry.DEFLATED, ze.getMethod());
+                assertArrayEquals(entry.getKey(), entry.getValue(), TestData.read(zf.getInputStream(ze)));
+            }
+        }
+        try (ZipInputStream zin = new ZipInputStream(Files.newInputStream(zip))) {
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                ZipEntry ze = zin.getNextEntry();
+                assertEquals(entry.getKey(), ze.getName());
+                assertArrayEquals(entry.getKey(), entry.getValue(), TestData.read(zin));
+            }
+            assertNull(zin.getNextEntry());
+        }
+    }
+
+    private static long count(InputStream in) throws IOException {
+        byte[] buf = new byte[65536];
+        long total = 0L;
+        int num = 0;
+        while ((num = in.read(buf)) != -1) {
+            total += num;
+        }
+        return total;
+    }
+}